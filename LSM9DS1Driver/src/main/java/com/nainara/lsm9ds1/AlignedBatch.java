@@ -0,0 +1,84 @@
+package com.nainara.lsm9ds1;
+
+/*************************************************************************************************
+ * 
+ * Consecutive ticks of a ClockAligner's clock, with the readings of every device interpolated at
+ * each tick. Storage is preallocated flat arrays that the aligner reuses for every batch.
+ * 
+ * Values of tick t, device d and channel c (see the SampleResampler channel constants) are at
+ * index (t * getDevices() + d) * SampleResampler.CHANNELS + c of getValues().
+ * 
+ *************************************************************************************************/
+public class AlignedBatch {
+	
+	private final int devices;
+	private final long[] timestamps;
+	private final float[] values;
+	private final boolean[] valid;
+	private int size = 0;
+	
+	/***********************************************************************************************
+	 * @param devices number of devices aligned
+	 * @param capacity maximum number of ticks per batch
+	 ***********************************************************************************************/
+	public AlignedBatch(int devices, int capacity) {
+		this.devices = devices;
+		this.timestamps = new long[capacity];
+		this.values = new float[capacity * devices * SampleResampler.CHANNELS];
+		this.valid = new boolean[capacity * devices];
+	}
+	
+	/****************************************************************************************
+	 * @return the value of one channel of one device at the given tick. Undefined when 
+	 * isValid() is false for that tick and device.
+	 ****************************************************************************************/
+	public float getValue(int tick, int device, int channel){
+		return values[(tick * devices + device) * SampleResampler.CHANNELS + channel];
+	}
+	
+	/****************************************************************************************
+	 * @return false if the device had a gap in its readings at the given tick
+	 ****************************************************************************************/
+	public boolean isValid(int tick, int device){
+		return valid[tick * devices + device];
+	}
+	
+	/****************************************************************************************
+	 * @return host time in nanoseconds (System.nanoTime) of the given tick
+	 ****************************************************************************************/
+	public long getTimestamp(int tick){
+		return timestamps[tick];
+	}
+	
+	public int getSize() {
+		return size;
+	}
+	
+	public int getDevices() {
+		return devices;
+	}
+	
+	public int getCapacity() {
+		return timestamps.length;
+	}
+	
+	public float[] getValues() {
+		return values;
+	}
+	
+	/***********************************************************************************************************
+	 * Filled in by ClockAligner
+	 ***********************************************************************************************************/
+	
+	long[] timestamps() {
+		return timestamps;
+	}
+	
+	boolean[] valid() {
+		return valid;
+	}
+	
+	void setSize(int size) {
+		this.size = size;
+	}
+}
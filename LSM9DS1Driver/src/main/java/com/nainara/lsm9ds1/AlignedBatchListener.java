@@ -0,0 +1,16 @@
+package com.nainara.lsm9ds1;
+
+/*************************************************************************************************
+ * 
+ * Receives readings of several IMUs resampled by a ClockAligner onto a common clock. Listeners 
+ * are invoked on the thread driving the aligner.
+ * 
+ *************************************************************************************************/
+public interface AlignedBatchListener {
+	
+	/****************************************************************************************
+	 * @param batch consecutive ticks of the common clock. The batch is reused by the aligner,
+	 * so copy out any values that must outlive the call.
+	 ****************************************************************************************/
+	void onAlignedBatch(AlignedBatch batch);
+}
@@ -1,7 +1,10 @@
 package com.nainara.lsm9ds1;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.collections.Buffer;
@@ -32,21 +35,54 @@ import org.apache.commons.collections.buffer.CircularFifoBuffer;
  * CircularFifoBuffer buffer = helper.getFifo();
  * helper.endPolling();
  * 
+ * By default each helper owns a single platform thread. A scheduler may be injected instead, 
+ * for example a real-time priority thread for latency, or one scheduler backed by virtual 
+ * threads shared by many simulated devices (see PollingExecutors). The helper may be stopped and
+ * started again any number of times; an injected scheduler is never shut down by the helper.
+ * 
  *************************************************************************************************/
 public class AsyncPollingHelper {
 	
 	//Buffer where polling results are stored
 	private Buffer fifo = null;
 	
-	//Thread executor for starting & stopping the async polling 
-	protected ExecutorService executor = Executors.newSingleThreadExecutor();
+	//Scheduler that runs the periodic FIFO drain
+	protected ScheduledExecutorService executor = null;
+	
+	//True when the scheduler was created by this helper and must be shut down by it
+	protected boolean isOwnedExecutor = true;
+	
+	//Creates the thread of an owned scheduler
+	protected ThreadFactory threadFactory = PollingExecutors.platformThreads("lsm9ds1-polling");
+	
+	//Handle to the scheduled drain task while polling
+	protected ScheduledFuture<?> pollingTask = null;
+	
+	//How often the thermometer is sampled, in milliseconds. Zero or less disables it
+	protected int temperatureIntervalMs = 1000;
+	
+	//Handle to the scheduled thermometer task while polling
+	protected ScheduledFuture<?> temperatureTask = null;
+	
+	//Held for the duration of a drain so that endPolling() can wait for one in flight
+	protected final Object drainLock = new Object();
 	
 	//Flag to signal when the thread should finish up
 	protected volatile boolean isContinuePolling = false;
 	
+	//When the current polling run began, and how long it took for the first readings to arrive
+	protected long beginPollingNs = 0;
+	protected volatile long timeToFirstSampleNs = -1;
+	
 	//Handle to the LMS9DS1 Driver instance
 	protected Driver driver = null;	
 	
+	//Listeners notified with each batch of readings drained from the device
+	protected List<PollingListener> listeners = new CopyOnWriteArrayList<>();
+	
+	//Reusable batch handed to the listeners. The LSM9DS1 FIFO holds at most 32 readings
+	protected Polling[] batch = new Polling[32];
+	
 	/***********************************************************************************************
 	 * @param driver Handle to the driver class that will do the polling
 	 ***********************************************************************************************/
@@ -58,55 +94,211 @@ public class AsyncPollingHelper {
 		fifo = BufferUtils.synchronizedBuffer(new CircularFifoBuffer(maxSize));
 	}
 	
+	/***********************************************************************************************
+	 * @param driver Handle to the driver class that will do the polling
+	 * @param executor Scheduler to run the drain on. It may be shared by several helpers, and it is
+	 * left running when polling ends.
+	 ***********************************************************************************************/
+	public AsyncPollingHelper(Driver driver, ScheduledExecutorService executor) {
+		this(driver);
+		this.executor = executor;
+		this.isOwnedExecutor = false;
+	}
+	
 	/****************************************************************************************
 	 * Signals the helper to start polling the IMU for data. It will continue until the
-	 * endPolling() method is called.
+	 * endPolling() method is called. Calling it while already polling has no effect.
+	 * @return false if the driver could not be initialized, in which case polling is not started
 	 ****************************************************************************************/
-	public void beginPolling(){
+	public synchronized boolean beginPolling(){
+		if(isContinuePolling){
+			return true;
+		}
+		beginPollingNs = System.nanoTime();
+		timeToFirstSampleNs = -1;
 		Driver.DataRate imuFreq = driver.getDatarate();
-		//The driver must be setup to use the fifo buffer
+		//The driver must be setup to use the fifo buffer. On a warm start this writes nothing
 		driver.setUseFifoBuffer(true);
-		driver.initialize();
+		if(!driver.initialize()){
+			System.err.println("Warning. The IMU could not be initialized, polling was not started.");
+			return false;
+		}
+		//Discard readings left over from a previous run, they would be stamped with the wrong time
+		discardStaleReadings();
+		if(isOwnedExecutor && (executor == null || executor.isShutdown())){
+			executor = PollingExecutors.newScheduler(threadFactory);
+		}
 		isContinuePolling = true;
 		int sleepTimeMs = imuFreq.getSleepDuration();
+		long samplePeriodNs = Math.round(1000000000d / imuFreq.getHz());
+		
+		//The first drain comes as soon as a couple of readings are in, rather than after a full 
+		//FIFO, to keep the time to first sample short. After that the scheduler waits between 
+		//drains, so no thread is held while the device fills up
+		long firstDrainDelayMs = Math.max(1, Math.round(2000 / imuFreq.getHz()));
+		pollingTask = executor.scheduleWithFixedDelay(() -> drain(samplePeriodNs), firstDrainDelayMs, sleepTimeMs, TimeUnit.MILLISECONDS);
 		
-		executor.submit(() -> {
-			int availReads = 0;
+		//The temperature changes slowly, so it is sampled on its own low-rate schedule rather than
+		//on every drain. The first sample is taken up front so compensation applies from the start
+		if(temperatureIntervalMs > 0){
+			temperatureTask = executor.scheduleWithFixedDelay(this::sampleTemperature, 0, temperatureIntervalMs, TimeUnit.MILLISECONDS);
+		}
+		return true;
+	}
+	
+	/****************************************************************************************
+	 * Reads and drops whatever is in the device FIFO. Unlike resetFifoBuffer(), which writes
+	 * FIFO_CTRL twice, this leaves the registers alone, so a warm start writes nothing.
+	 ****************************************************************************************/
+	protected void discardStaleReadings(){
+		for(int stale=driver.pollAvailableReads(); stale > 0; stale--){
+			driver.pollIMU();
+		}
+	}
+	
+	/****************************************************************************************
+	 * Polls the thermometer, which also refreshes the driver's gyroscope bias compensation
+	 ****************************************************************************************/
+	protected void sampleTemperature(){
+		//Shares the lock with the drain so the bus is never used from two threads at once
+		synchronized(drainLock){
+			if(!isContinuePolling){
+				return;
+			}
 			try{
-				while(isContinuePolling){
-					availReads = driver.pollAvailableReads();
-					for(int reads=availReads; reads > 0; reads--){
-						driver.pollIMU();
-						Polling polling = new Polling();
-						polling.pollDriver(driver);
-						fifo.add(polling);
+				driver.pollThermometer();
+			}catch(Exception e){
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/****************************************************************************************
+	 * Pulls everything available from the device FIFO into the circular buffer and notifies
+	 * the listeners
+	 ****************************************************************************************/
+	protected void drain(long samplePeriodNs){
+		synchronized(drainLock){
+			if(!isContinuePolling){
+				return;
+			}
+			//Exceptions must not escape, or the scheduler silently cancels the task
+			try{
+				int availReads = driver.pollAvailableReads();
+				long drainTime = System.nanoTime();
+				int count = 0;
+				for(int reads=availReads; reads > 0; reads--){
+					driver.pollIMU();
+					Polling polling = new Polling();
+					polling.pollDriver(driver);
+					polling.setTimestamp(estimateTimestamp(drainTime, reads, samplePeriodNs));
+					fifo.add(polling);
+					if(count < batch.length){
+						batch[count++] = polling;
+					}
+				}
+				driver.resetFifoBuffer();
+				if(count > 0){
+					if(timeToFirstSampleNs < 0){
+						timeToFirstSampleNs = System.nanoTime() - beginPollingNs;
+					}
+					for(PollingListener listener : listeners){
+						listener.onPollings(batch, count);
 					}
-					driver.resetFifoBuffer();
-					Thread.sleep(sleepTimeMs);
 				}
 			}catch(Exception e){
 				e.printStackTrace();
 			}
-		});
+		}
+	}
+	
+	/****************************************************************************************
+	 * Estimates the host time of a reading pulled from the device FIFO, which carries no
+	 * timestamps. The drain falls at a random point of the sample period, so the newest reading
+	 * is on average half a period old; each older one is a nominal period before the next.
+	 * @param drainTimeNs System.nanoTime() when the FIFO was drained
+	 * @param reads readings left in the FIFO, including this one
+	 * @param samplePeriodNs nominal sample period of the configured DataRate
+	 ****************************************************************************************/
+	public static long estimateTimestamp(long drainTimeNs, int reads, long samplePeriodNs){
+		return drainTimeNs - (reads - 1) * samplePeriodNs - samplePeriodNs / 2;
 	}
 	
 	/****************************************************************************************
-	 * Signals the helper to stop polling the IMU for data and terminates the thread
+	 * Signals the helper to stop polling the IMU for data. Returns once any drain in flight
+	 * has finished. An owned scheduler is shut down, and recreated by the next beginPolling().
 	 ****************************************************************************************/
-	public void endPolling(){
+	public synchronized void endPolling(){
+		if(!isContinuePolling){
+			return;
+		}
 		isContinuePolling = false;
-		executor.shutdown();
-	    try {
-			executor.awaitTermination(5, TimeUnit.SECONDS);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+		pollingTask.cancel(false);
+		pollingTask = null;
+		if(temperatureTask != null){
+			temperatureTask.cancel(false);
+			temperatureTask = null;
+		}
+		synchronized(drainLock){
+			//Nothing to do, just wait for an in-flight drain to let go
+		}
+		if(isOwnedExecutor){
+			executor.shutdown();
+		    try {
+				executor.awaitTermination(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
 		}
 	}
+	
+	public boolean isPolling(){
+		return isContinuePolling;
+	}
+	
+	/****************************************************************************************
+	 * @return nanoseconds from the call to beginPolling() until the first readings were 
+	 * delivered, including device initialization, or -1 if none have arrived yet
+	 ****************************************************************************************/
+	public long getTimeToFirstSampleNs(){
+		return timeToFirstSampleNs;
+	}
+
+	/****************************************************************************************
+	 * @param listener notified on the polling thread with every batch drained from the IMU
+	 ****************************************************************************************/
+	public void addPollingListener(PollingListener listener){
+		listeners.add(listener);
+	}
+	
+	public void removePollingListener(PollingListener listener){
+		listeners.remove(listener);
+	}
 
 	public Buffer getFifo() {
 		return fifo;
 	}
 	
+	/************************************************************************************************
+	 * @param threadFactory creates the thread of the scheduler owned by this helper. Takes effect
+	 * the next time polling begins. Ignored when a scheduler was injected.
+	 ************************************************************************************************/
+	public void setThreadFactory(ThreadFactory threadFactory){
+		this.threadFactory = threadFactory;
+	}
+	
+	public int getTemperatureIntervalMs() {
+		return temperatureIntervalMs;
+	}
+	
+	/************************************************************************************************
+	 * @param temperatureIntervalMs how often to sample the thermometer between FIFO drains, or 0
+	 * to never sample it. Takes effect the next time polling begins.
+	 ************************************************************************************************/
+	public void setTemperatureIntervalMs(int temperatureIntervalMs) {
+		this.temperatureIntervalMs = temperatureIntervalMs;
+	}
+	
 	/************************************************************************************************
 	 * @param size sets the maximum size of the circular fifo buffer
 	 ************************************************************************************************/
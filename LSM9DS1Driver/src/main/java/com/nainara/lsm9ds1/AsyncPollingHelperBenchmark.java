@@ -0,0 +1,125 @@
+package com.nainara.lsm9ds1;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*************************************************************************************************
+ *
+ * Measures the thread and heap cost per device of running many AsyncPollingHelpers in one JVM,
+ * using simulated devices at 476hz. Three configurations are compared:
+ *
+ * - one owned platform thread per helper (the default)
+ * - all helpers sharing one platform-thread scheduler with a thread per processor
+ * - one owned virtual thread per helper (falls back to platform threads before Java 21). Each
+ *   helper waits for its next drain on its own virtual thread, which releases its carrier while
+ *   parked, so no device queues behind another for a worker.
+ *
+ * Each configuration is also stopped and restarted to check that restarts are clean.
+ *
+ * ThreadMXBean only sees platform threads, which include the carrier threads of virtual threads
+ * but not the virtual threads themselves. The drain threads are therefore also counted directly,
+ * through a ThreadFactory wrapper that tracks the threads whose task is still running.
+ *
+ * Usage: java -cp "LSM9DS1-0.1.0.jar:lib/*" com.nainara.lsm9ds1.AsyncPollingHelperBenchmark [devices]
+ *
+ *************************************************************************************************/
+public class AsyncPollingHelperBenchmark {
+
+	private static final int RUN_MS = 2000;
+
+	public static void main(String[] args) throws InterruptedException {
+		int devices = args.length > 0 ? Integer.parseInt(args[0]) : 48;
+		int carriers = Runtime.getRuntime().availableProcessors();
+		System.out.println("Devices: " + devices + ", virtual threads supported: " + PollingExecutors.isVirtualThreadSupported());
+
+		LiveThreadCounter owned = new LiveThreadCounter(PollingExecutors.platformThreads("owned"));
+		run("Owned platform thread per device", devices, null, owned);
+
+		LiveThreadCounter sharedThreads = new LiveThreadCounter(PollingExecutors.platformThreads("shared"));
+		ScheduledExecutorService shared = PollingExecutors.newScheduler(carriers, sharedThreads);
+		run("Shared platform scheduler (" + carriers + " threads)", devices, shared, sharedThreads);
+		shared.shutdown();
+		shared.awaitTermination(5, TimeUnit.SECONDS);
+
+		LiveThreadCounter virtual = new LiveThreadCounter(PollingExecutors.virtualThreads("virtual"));
+		run("Owned virtual thread per device", devices, null, virtual);
+	}
+
+	private static void run(String label, int devices, ScheduledExecutorService scheduler, LiveThreadCounter drainThreads) throws InterruptedException {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		int threadsBefore = threads.getThreadCount();
+		long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+
+		List<AsyncPollingHelper> helpers = new ArrayList<>();
+		for(int i=0; i < devices; i++){
+			SimulatedDriver driver = new SimulatedDriver();
+			driver.setDatarate(Driver.DataRate.FREQ_476_HZ);
+			AsyncPollingHelper helper;
+			if(scheduler == null){
+				helper = new AsyncPollingHelper(driver);
+				helper.setThreadFactory(drainThreads);
+			}else{
+				helper = new AsyncPollingHelper(driver, scheduler);
+			}
+			helpers.add(helper);
+		}
+
+		long samples = 0;
+		for(int pass=0; pass < 2; pass++){
+			for(AsyncPollingHelper helper : helpers){
+				helper.getFifo().clear();
+				helper.beginPolling();
+			}
+			Thread.sleep(RUN_MS);
+
+			int threadsDuring = threads.getThreadCount();
+			int drainThreadsDuring = drainThreads.live.get();
+			long heapDuring = runtime.totalMemory() - runtime.freeMemory();
+
+			for(AsyncPollingHelper helper : helpers){
+				helper.endPolling();
+				samples += helper.getFifo().size();
+			}
+			if(pass == 0){
+				System.out.println(label + ":");
+				System.out.println("  platform threads per device (incl. carriers): " + String.format("%.2f", (threadsDuring - threadsBefore) / (double) devices));
+				System.out.println("  live drain threads (platform or virtual): " + drainThreadsDuring);
+				System.out.println("  heap per device (KB): " + (heapDuring - heapBefore) / devices / 1024);
+			}
+		}
+		double expected = 2.0 * devices * Driver.DataRate.FREQ_476_HZ.getHz() * RUN_MS / 1000;
+		System.out.println("  samples over two runs: " + samples + " (" + Math.round(100 * samples / expected) + "% of nominal)");
+		System.out.println("  platform threads left after stop: " + (threads.getThreadCount() - threadsBefore));
+		System.out.println("  drain threads left after stop: " + drainThreads.live.get());
+	}
+
+	//Counts the threads it created whose task has not finished yet
+	private static class LiveThreadCounter implements ThreadFactory{
+		final ThreadFactory threadFactory;
+		final AtomicInteger live = new AtomicInteger();
+
+		LiveThreadCounter(ThreadFactory threadFactory){
+			this.threadFactory = threadFactory;
+		}
+
+		@Override
+		public Thread newThread(Runnable task){
+			return threadFactory.newThread(() -> {
+				live.incrementAndGet();
+				try{
+					task.run();
+				}finally{
+					live.decrementAndGet();
+				}
+			});
+		}
+	}
+}
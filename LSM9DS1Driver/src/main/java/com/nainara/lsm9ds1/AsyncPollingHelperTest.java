@@ -1,5 +1,7 @@
 package com.nainara.lsm9ds1;
 
+import java.util.concurrent.TimeUnit;
+
 import org.apache.commons.collections.Buffer;
 
 public class AsyncPollingHelperTest {
@@ -14,8 +16,14 @@ public class AsyncPollingHelperTest {
 		AsyncPollingHelper helper = new AsyncPollingHelper(driver);
 		
 		try {
-			helper.beginPolling();
+			if(!helper.beginPolling()){
+				System.out.println("***No LSM9DS1 found, nothing to test***");
+				return;
+			}
 			Thread.sleep(2500);
+			System.out.println("***Startup: initialization " + TimeUnit.NANOSECONDS.toMicros(driver.getInitializationNanos()) 
+					+ " us, registers written " + driver.getConfigRegistersWritten()
+					+ ", time to first sample " + TimeUnit.NANOSECONDS.toMillis(helper.getTimeToFirstSampleNs()) + " ms***");
 			System.out.println("***Fetching data first 2.5 seconds***");
 			Buffer buffer = helper.getFifo();
 			while(!buffer.isEmpty()){
@@ -34,6 +42,14 @@ public class AsyncPollingHelperTest {
 				System.out.println(buffer.remove().toString());
 			}
 			
+			//A restart finds the device already configured and skips the register writes
+			helper.beginPolling();
+			Thread.sleep(500);
+			helper.endPolling();
+			System.out.println("***Warm restart: initialization " + TimeUnit.NANOSECONDS.toMicros(driver.getInitializationNanos()) 
+					+ " us, registers written " + driver.getConfigRegistersWritten()
+					+ ", time to first sample " + TimeUnit.NANOSECONDS.toMillis(helper.getTimeToFirstSampleNs()) + " ms***");
+			
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 		}
@@ -0,0 +1,158 @@
+package com.nainara.lsm9ds1;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/*************************************************************************************************
+ *
+ * ClockAligner puts the readings of several IMUs on one fixed-rate clock defined by the host, for
+ * example the frame clock of a camera. Each device runs off its own crystal, so its readings
+ * drift against the other devices and the host; a SampleResampler per device interpolates them
+ * at every tick of the common clock.
+ *
+ * Readings reach the host in FIFO drains, up to one drain interval late, so the aligner only
+ * emits a tick once it is delayNs in the past. Set the delay to at least the longest drain
+ * interval of the devices (see DataRate.getSleepDuration()) plus some margin; ticks that are not
+ * yet covered by a device's readings are reported as gaps.
+ *
+ * Ticks are delivered to AlignedBatchListeners in a preallocated AlignedBatch, so aligning
+ * allocates nothing per tick or per reading.
+ *
+ * Sample usage:
+ *
+ * SampleResampler left = new SampleResampler(Driver.DataRate.FREQ_476_HZ);
+ * SampleResampler right = new SampleResampler(Driver.DataRate.FREQ_476_HZ);
+ * leftHelper.addPollingListener(left);
+ * rightHelper.addPollingListener(right);
+ * ClockAligner aligner = new ClockAligner(new SampleResampler[]{left, right}, cameraEpochNs, 33333333L, 64);
+ * aligner.addAlignedBatchListener(myFusion);
+ * aligner.start(scheduler, 20);
+ *
+ *************************************************************************************************/
+public class ClockAligner {
+
+	private final SampleResampler[] devices;
+	private final long periodNs;
+	private final AlignedBatch batch;
+
+	//Host time of the next tick to emit
+	private long nextTickNs;
+
+	//How far behind the current time ticks are emitted
+	private volatile long delayNs = 150000000L;
+
+	private final List<AlignedBatchListener> listeners = new CopyOnWriteArrayList<>();
+
+	//Handle to the scheduled alignment task, when driven by a scheduler
+	private ScheduledFuture<?> alignTask = null;
+
+	/***********************************************************************************************
+	 * @param devices one resampler per device, in the order they appear in each AlignedBatch
+	 * @param firstTickNs host time (System.nanoTime) of the first tick. Later ticks follow at
+	 * exact multiples of the period.
+	 * @param periodNs spacing of the common clock
+	 * @param maxTicksPerBatch capacity of the reused AlignedBatch
+	 ***********************************************************************************************/
+	public ClockAligner(SampleResampler[] devices, long firstTickNs, long periodNs, int maxTicksPerBatch) {
+		this.devices = devices.clone();
+		this.nextTickNs = firstTickNs;
+		this.periodNs = periodNs;
+		this.batch = new AlignedBatch(devices.length, Math.max(1, maxTicksPerBatch));
+	}
+
+	/****************************************************************************************
+	 * Emits every tick up to nowNs minus the delay. Useful to drive the aligner directly,
+	 * e.g. from a SessionReplay with recorded timestamps.
+	 * @param nowNs current host time in nanoseconds
+	 * @return number of ticks emitted
+	 ****************************************************************************************/
+	public synchronized int alignTo(long nowNs){
+		long lastTick = nowNs - delayNs;
+		long[] timestamps = batch.timestamps();
+		boolean[] valid = batch.valid();
+		float[] values = batch.getValues();
+		int capacity = batch.getCapacity();
+		int size = 0;
+		int emitted = 0;
+		while(nextTickNs <= lastTick){
+			timestamps[size] = nextTickNs;
+			for(int d=0; d < devices.length; d++){
+				int slot = size * devices.length + d;
+				valid[slot] = devices[d].interpolate(nextTickNs, values, slot * SampleResampler.CHANNELS);
+			}
+			size++;
+			emitted++;
+			nextTickNs += periodNs;
+			if(size == capacity){
+				deliver(size);
+				size = 0;
+			}
+		}
+		if(size > 0){
+			deliver(size);
+		}
+		return emitted;
+	}
+
+	private void deliver(int size){
+		batch.setSize(size);
+		for(AlignedBatchListener listener : listeners){
+			listener.onAlignedBatch(batch);
+		}
+	}
+
+	/****************************************************************************************
+	 * Aligns against the host clock at a fixed interval on the given scheduler until stop()
+	 * @param intervalMs how often to emit the ticks that have become due
+	 ****************************************************************************************/
+	public synchronized void start(ScheduledExecutorService scheduler, long intervalMs){
+		if(alignTask != null){
+			return;
+		}
+		alignTask = scheduler.scheduleAtFixedRate(() -> {
+			//Exceptions must not escape, or the scheduler silently cancels the task
+			try{
+				alignTo(System.nanoTime());
+			}catch(Exception e){
+				e.printStackTrace();
+			}
+		}, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop(){
+		if(alignTask != null){
+			alignTask.cancel(false);
+			alignTask = null;
+		}
+	}
+
+	/****************************************************************************************
+	 * @param listener notified with every batch of aligned ticks
+	 ****************************************************************************************/
+	public void addAlignedBatchListener(AlignedBatchListener listener){
+		listeners.add(listener);
+	}
+
+	public void removeAlignedBatchListener(AlignedBatchListener listener){
+		listeners.remove(listener);
+	}
+
+	public long getPeriodNs() {
+		return periodNs;
+	}
+
+	public synchronized long getNextTickNs() {
+		return nextTickNs;
+	}
+
+	public long getDelayNs() {
+		return delayNs;
+	}
+
+	public void setDelayNs(long delayNs) {
+		this.delayNs = delayNs;
+	}
+}
@@ -0,0 +1,153 @@
+package com.nainara.lsm9ds1;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+/*************************************************************************************************
+ *
+ * Measures the throughput and accuracy of resampling drifting IMUs onto a common clock, without
+ * hardware. Each SimulatedDriver runs at 476hz off a crystal with its own error (hundreds of ppm)
+ * against a simulated host clock. The devices are drained like AsyncPollingHelper drains them:
+ * every DataRate.getSleepDuration() plus some scheduling jitter, with readings stamped by
+ * AsyncPollingHelper.estimateTimestamp() at the nominal sample period. The streams are aligned to
+ * a 200hz host clock with linear and cubic interpolation, and the result is compared with the
+ * true signal at each tick, so the error includes that of the timestamp estimate under drift.
+ * The mean timestamp error is checked to be within 5% of a sample period of zero.
+ *
+ * Usage: java -cp "LSM9DS1-0.1.0.jar:lib/*" com.nainara.lsm9ds1.ClockAlignerBenchmark [devices] [seconds]
+ *
+ *************************************************************************************************/
+public class ClockAlignerBenchmark {
+
+	private static final Driver.DataRate DATARATE = Driver.DataRate.FREQ_476_HZ;
+	private static final long HOST_PERIOD_NS = 5000000L;
+	private static final long ALIGN_INTERVAL_NS = 20000000L;
+	private static final long DRAIN_JITTER_NS = 1000000L;
+
+	public static void main(String[] args) {
+		int devices = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3600;
+		run(devices, seconds, SampleResampler.Interpolation.LINEAR);
+		run(devices, seconds, SampleResampler.Interpolation.CUBIC);
+	}
+
+	private static void run(int devices, int seconds, SampleResampler.Interpolation interpolation){
+		Random random = new Random(42);
+		long[] hostNs = new long[1];
+		SimulatedDriver[] drivers = new SimulatedDriver[devices];
+		SampleResampler[] resamplers = new SampleResampler[devices];
+		long[] nextDrainNs = new long[devices];
+		for(int d=0; d < devices; d++){
+			drivers[d] = new SimulatedDriver((random.nextDouble() - 0.5) * 600e-6);
+			drivers[d].setDatarate(DATARATE);
+			drivers[d].setClock(() -> hostNs[0]);
+			drivers[d].initialize();
+			resamplers[d] = new SampleResampler(DATARATE);
+			resamplers[d].setInterpolation(interpolation);
+			nextDrainNs[d] = random.nextInt(DATARATE.getSleepDuration()) * 1000000L;
+		}
+
+		ClockAligner aligner = new ClockAligner(resamplers, 0, HOST_PERIOD_NS, 64);
+		ErrorListener errors = new ErrorListener();
+		aligner.addAlignedBatchListener(errors);
+
+		Polling[] batch = new Polling[32];
+		for(int i=0; i < batch.length; i++){
+			batch[i] = new Polling();
+		}
+
+		long samplePeriodNs = Math.round(1000000000d / DATARATE.getHz());
+		long sleepNs = DATARATE.getSleepDuration() * 1000000L;
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long allocatedBefore = allocatedBytes(threads);
+		long start = System.nanoTime();
+		long readings = 0;
+		long lost = 0;
+		double sumStampError = 0;
+		double sumSquaresStampError = 0;
+
+		long endNs = seconds * 1000000000L;
+		for(long alignNs=ALIGN_INTERVAL_NS; alignNs <= endNs; alignNs += ALIGN_INTERVAL_NS){
+			for(int d=0; d < devices; d++){
+				SimulatedDriver driver = drivers[d];
+				double deviceHz = DATARATE.getHz() * (1 + driver.getClockDrift());
+				while(nextDrainNs[d] <= alignNs){
+					//Same sequence as AsyncPollingHelper.drain(), on the simulated host clock
+					hostNs[0] = nextDrainNs[d];
+					long indexBefore = driver.getSampleIndex();
+					int availReads = driver.pollAvailableReads();
+					long drainTime = hostNs[0];
+					int count = 0;
+					for(int reads=availReads; reads > 0; reads--){
+						driver.pollIMU();
+						Polling polling = batch[count++];
+						polling.pollDriver(driver);
+						polling.setTimestamp(AsyncPollingHelper.estimateTimestamp(drainTime, reads, samplePeriodNs));
+						double stampError = polling.getTimestamp() - driver.getSampleIndex() / deviceHz * 1e9;
+						sumStampError += stampError;
+						sumSquaresStampError += stampError * stampError;
+					}
+					driver.resetFifoBuffer();
+					lost += driver.getSampleIndex() - indexBefore - count;
+					resamplers[d].onPollings(batch, count);
+					readings += count;
+					//Fixed delay scheduling, so jitter accumulates like it does on a real scheduler
+					nextDrainNs[d] += sleepNs + (long) (random.nextDouble() * DRAIN_JITTER_NS);
+				}
+			}
+			aligner.alignTo(alignNs);
+		}
+
+		long elapsedNs = System.nanoTime() - start;
+		long allocated = allocatedBytes(threads) - allocatedBefore;
+		double meanStampError = sumStampError / Math.max(1, readings);
+		System.out.println(interpolation + ", " + devices + " devices, " + seconds + " s simulated:");
+		System.out.println("  readings in: " + readings + ", lost to FIFO overflow: " + lost + ", ticks out: " + errors.ticks + ", gaps: " + errors.gaps);
+		System.out.println("  throughput: " + Math.round(readings / (elapsedNs / 1e9)) + " readings/s, "
+				+ Math.round(errors.ticks / (elapsedNs / 1e9)) + " aligned ticks/s");
+		System.out.println("  timestamp error: mean " + String.format("%.1f", meanStampError / 1000) + " us, rms "
+				+ String.format("%.1f", Math.sqrt(sumSquaresStampError / Math.max(1, readings)) / 1000) + " us");
+		//The estimate must be unbiased; what remains is the spread within one sample period
+		System.out.println(Math.abs(meanStampError) < samplePeriodNs / 20 ? "  timestamps unbiased OK"
+				: "  MISMATCH, timestamps are biased by " + String.format("%.1f", meanStampError / 1000) + " us");
+		System.out.println("  rms error of aligned yaw rate: " + String.format("%.6f", Math.sqrt(errors.sumSquares / Math.max(1, errors.samples))) + " dps");
+		System.out.println("  bytes allocated per reading: " + (allocated < 0 ? "n/a" : String.format("%.3f", allocated / (double) readings)));
+	}
+
+	//Yaw rate SimulatedDriver produces at the given host time after initialize()
+	private static double signal(long hostNs){
+		return 20 * Math.sin(2 * Math.PI * 1.1 * hostNs / 1e9);
+	}
+
+	private static long allocatedBytes(ThreadMXBean threads){
+		if(threads instanceof com.sun.management.ThreadMXBean){
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	private static class ErrorListener implements AlignedBatchListener{
+		long ticks = 0;
+		long gaps = 0;
+		long samples = 0;
+		double sumSquares = 0;
+
+		@Override
+		public void onAlignedBatch(AlignedBatch batch){
+			for(int t=0; t < batch.getSize(); t++){
+				ticks++;
+				double expected = signal(batch.getTimestamp(t));
+				for(int d=0; d < batch.getDevices(); d++){
+					if(!batch.isValid(t, d)){
+						gaps++;
+						continue;
+					}
+					double error = batch.getValue(t, d, SampleResampler.GYR_YAW_Z) - expected;
+					sumSquares += error * error;
+					samples++;
+				}
+			}
+		}
+	}
+}
@@ -1,6 +1,9 @@
 package com.nainara.lsm9ds1;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
 
 import com.pi4j.io.i2c.I2CBus;
 import com.pi4j.io.i2c.I2CDevice;
@@ -19,6 +22,13 @@ import com.pi4j.io.i2c.I2CFactory;
  ***************************************************************************************/
 public class Driver {
 	
+	/******************************************************************
+	 * Bus handles shared by all Driver instances in the JVM, so that
+	 * restarting a driver does not reopen the bus
+	 ******************************************************************/
+	private static final Map<Integer, I2CBus> sharedBuses = new HashMap<>();
+	private static final Map<Integer, I2CDevice> sharedDevices = new HashMap<>();
+	
 	/******************************************************************
 	 * Configuration variables
 	 ******************************************************************/
@@ -57,6 +67,12 @@ public class Driver {
 	 */
 	private boolean isUseFifoBuffer = false;
 	
+	/**
+	 *  Optional temperature-dependent gyroscope bias correction. The bias is looked up each time
+	 *  the thermometer is polled and subtracted while decoding gyroscope readings.
+	 */
+	private volatile GyroTemperatureCompensation gyroCompensation = null;
+	
 	/******************************************************************
 	 * Sensor reading variables from the last polling
 	 ******************************************************************/
@@ -78,6 +94,10 @@ public class Driver {
 
 	//Thermometer
 	private float temperature;
+	private boolean isTemperatureValid = false;
+	
+	//Gyroscope bias for the last polled temperature (x, y, z)
+	private float[] gyroBias = new float[3];
 	
 	//Stringbuilder for toString method
 	StringBuilder sb = new StringBuilder();
@@ -87,6 +107,14 @@ public class Driver {
 	private byte[] byteArr = new byte[2];
 	byte[] readbuffer = new byte[12];
 	
+	//Readback of the control registers, indexed by address from CTRL_REG1_G. The status and
+	//output registers in between are never read into it
+	byte[] configbuffer = new byte[LSM9DS1Const.FIFO_CTRL - LSM9DS1Const.CTRL_REG1_G + 1];
+	
+	/* Startup statistics of the last call to initialize() */
+	private long initializationNanos = 0;
+	private int configRegistersWritten = 0;
+	
 	/***********************************************************************************************
 	 * Sample usage of FIFO mode
 	 ***********************************************************************************************/
@@ -154,34 +182,135 @@ public class Driver {
 //		}
 //	}
 	
-	public void initialize(){
-		I2CBus bus;
+	/***********************************************************************************************
+	 * Prepares the device for polling. The device identity is probed and the current configuration
+	 * is read back in three short bursts; only registers that differ from the requested
+	 * configuration are written. Calling it again on a device that is already configured (e.g.
+	 * after a service restart) therefore costs four bus transactions and no writes.
+	 * @return false if the device does not answer as a LSM9DS1 or could not be configured, in
+	 * which case it must not be polled
+	 ***********************************************************************************************/
+	public boolean initialize(){
+		long start = System.nanoTime();
+		configRegistersWritten = 0;
 		try {
-			//Get a handle to the IMU
-			bus = I2CFactory.getInstance(I2CBus.BUS_1);
-			lsm9ds1 = bus.getDevice(i2cDeviceAddress);
+			//Get a handle to the IMU, reusing the bus opened by any earlier driver
+			lsm9ds1 = getSharedDevice(I2CBus.BUS_1, i2cDeviceAddress);
+			
+			//Make sure the device on the address really is the accelerometer/gyroscope of a LSM9DS1
+			int whoAmI = lsm9ds1.read(LSM9DS1Const.WHO_AM_I);
+			if(whoAmI != LSM9DS1Const.WHO_AM_I_AG_RSP){
+				System.err.println("Warning. Device at address 0x" + Integer.toHexString(i2cDeviceAddress) 
+					+ " answered WHO_AM_I with 0x" + Integer.toHexString(whoAmI) + ", which is not a LSM9DS1.");
+				lsm9ds1 = null;
+				return false;
+			}
+			
+			//Read back only the control registers. The status and output registers between them
+			//must not be read: that would clear latched interrupts (INT_GEN_SRC_G, INT_GEN_SRC_XL)
+			//and pop readings off the FIFO. The bursts rely on register address auto-increment
+			//(CTRL_REG8 IF_ADD_INC), which is enabled by default
+			lsm9ds1.read(LSM9DS1Const.CTRL_REG1_G, configbuffer, 0, 
+					LSM9DS1Const.ORIENT_CFG_G - LSM9DS1Const.CTRL_REG1_G + 1);
+			lsm9ds1.read(LSM9DS1Const.CTRL_REG4, configbuffer, LSM9DS1Const.CTRL_REG4 - LSM9DS1Const.CTRL_REG1_G, 
+					LSM9DS1Const.CTRL_REG10 - LSM9DS1Const.CTRL_REG4 + 1);
+			configbuffer[LSM9DS1Const.FIFO_CTRL - LSM9DS1Const.CTRL_REG1_G] = (byte) lsm9ds1.read(LSM9DS1Const.FIFO_CTRL);
+			
 			//Power-on the gyroscope and accelerometer
 			byte ctrlReg1G = (byte) Integer.parseInt(datarate.getBits() + "00000", 2); 
-			lsm9ds1.write(LSM9DS1Const.CTRL_REG1_G, ctrlReg1G);
+			writeIfChanged(LSM9DS1Const.CTRL_REG1_G, ctrlReg1G);
 			byte ctrlReg6XL = (byte) Integer.parseInt( "000" + accelerometerScale.getBits() + "000", 2);
-			lsm9ds1.write(LSM9DS1Const.CTRL_REG6_XL, ctrlReg6XL);
+			writeIfChanged(LSM9DS1Const.CTRL_REG6_XL, ctrlReg6XL);
 			
 			//Turn on FIFO mode if specified by user
 			if(isUseFifoBuffer){
 				//1) Set (7.27) CTRL_REG9 bits idx 6 to value (1). Enables FIFO memory
 				byte ctrlReg9 = 0b00000010;
-				lsm9ds1.write(LSM9DS1Const.CTRL_REG9, ctrlReg9);
+				writeIfChanged(LSM9DS1Const.CTRL_REG9, ctrlReg9);
 				//2) Set (7.34) FIFO_CTRL bits idx 0-2 to value (011). Word: (11000000) - Sets the mode to FIFO overwrite
 				byte fifoCtrl = -64; 
-				lsm9ds1.write(LSM9DS1Const.FIFO_CTRL, fifoCtrl);
+				writeIfChanged(LSM9DS1Const.FIFO_CTRL, fifoCtrl);
 			}
+			return true;
 			
 		} catch (Exception e) {
 			e.printStackTrace();
+			//The handle may be broken, so the next initialize() opens it afresh
+			lsm9ds1 = null;
+			evictSharedDevice(I2CBus.BUS_1, i2cDeviceAddress);
+			return false;
+		} finally {
+			initializationNanos = System.nanoTime() - start;
 		}
 		
 	}
 	
+	//Writes a control register unless the burst readback shows it already holds the value
+	private void writeIfChanged(byte register, byte value) throws IOException{
+		if(configbuffer[register - LSM9DS1Const.CTRL_REG1_G] == value){
+			return;
+		}
+		lsm9ds1.write(register, value);
+		configbuffer[register - LSM9DS1Const.CTRL_REG1_G] = value;
+		configRegistersWritten++;
+	}
+	
+	/***********************************************************************************************
+	 * @return a handle to the device at the given address, opening the bus only on first use in 
+	 * the JVM
+	 ***********************************************************************************************/
+	private static synchronized I2CDevice getSharedDevice(int busNumber, int address) throws Exception{
+		int key = (busNumber << 8) | address;
+		I2CDevice device = sharedDevices.get(key);
+		if(device == null){
+			I2CBus bus = sharedBuses.get(busNumber);
+			if(bus == null){
+				bus = I2CFactory.getInstance(busNumber);
+				sharedBuses.put(busNumber, bus);
+			}
+			device = bus.getDevice(address);
+			sharedDevices.put(key, device);
+		}
+		return device;
+	}
+	
+	/***********************************************************************************************
+	 * Forgets the handle to a device after an I/O failure, and closes its bus if no other device 
+	 * uses it
+	 ***********************************************************************************************/
+	private static synchronized void evictSharedDevice(int busNumber, int address){
+		sharedDevices.remove((busNumber << 8) | address);
+		for(Integer key : sharedDevices.keySet()){
+			if(key >> 8 == busNumber){
+				return;
+			}
+		}
+		I2CBus bus = sharedBuses.remove(busNumber);
+		if(bus != null){
+			try {
+				bus.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/***********************************************************************************************
+	 * Closes every bus opened by drivers in this JVM, e.g. on shutdown. Drivers must be 
+	 * initialized again before they are polled.
+	 ***********************************************************************************************/
+	public static synchronized void releaseSharedBuses(){
+		for(I2CBus bus : sharedBuses.values()){
+			try {
+				bus.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		sharedBuses.clear();
+		sharedDevices.clear();
+	}
+	
 	/***********************************************************************************************
 	 * Fetch gyroscope and accelerometer register values
 	 ***********************************************************************************************/
@@ -192,12 +321,19 @@ public class Driver {
 		}
 		try {
 			lsm9ds1.read(LSM9DS1Const.OUT_X_L_G, readbuffer, 0, 12);
-			gyrPitchX = toAngleDegrees(readbuffer[1], readbuffer[0]);
-			gyrRollY = toAngleDegrees(readbuffer[3], readbuffer[2]);
-			gyrYawZ = toAngleDegrees(readbuffer[5], readbuffer[4]); 
+			float rawPitchX = toAngleDegrees(readbuffer[1], readbuffer[0]);
+			float rawRollY = toAngleDegrees(readbuffer[3], readbuffer[2]);
+			float rawYawZ = toAngleDegrees(readbuffer[5], readbuffer[4]); 
 			accX = toGs(readbuffer[7], readbuffer[6]);
 			accY = toGs(readbuffer[9], readbuffer[8]);
 			accZ = toGs(readbuffer[11], readbuffer[10]);
+			gyrPitchX = rawPitchX - gyroBias[0];
+			gyrRollY = rawRollY - gyroBias[1];
+			gyrYawZ = rawYawZ - gyroBias[2];
+			GyroTemperatureCompensation compensation = gyroCompensation;
+			if(compensation != null && isTemperatureValid && compensation.isLearning()){
+				compensation.learn(temperature, rawPitchX, rawRollY, rawYawZ, accX, accY, accZ);
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -232,6 +368,11 @@ public class Driver {
 		try {
 			lsm9ds1.read(LSM9DS1Const.OUT_TEMP_L, readbuffer, 0, 2);
 			temperature = normalizeTemperature(readbuffer[1], readbuffer[0]);
+			isTemperatureValid = true;
+			GyroTemperatureCompensation compensation = gyroCompensation;
+			if(compensation != null){
+				compensation.getBias(temperature, gyroBias);
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -294,12 +435,9 @@ public class Driver {
 	    bb = ByteBuffer.wrap(byteArr);
 	    return ((float) bb.getShort() / Short.MAX_VALUE) * scale;
 	}
-	//Temp scale is static -40 to +80c. Typical operating value is +25c
-	private float normalizeTemperature(byte hb, byte lb) {
-		byteArr[0] = hb;
-		byteArr[1] = lb;
-	    bb = ByteBuffer.wrap(byteArr);
-	    return ((float) bb.getShort() / Short.MAX_VALUE) * (120 / 2) + 20;
+	//Per the datasheet the sensor reads 0 at 25c, with a sensitivity of 16 LSB per degree
+	static float normalizeTemperature(byte hb, byte lb) {
+	    return (float) (short) ((hb << 8) | (lb & 0xFF)) / 16 + 25;
 	}
 	
 	/***********************************************************************************************************
@@ -449,6 +587,36 @@ public class Driver {
 		this.isUseFifoBuffer = isUseFifoBuffer;
 	}
 
+	public GyroTemperatureCompensation getGyroCompensation() {
+		return gyroCompensation;
+	}
+
+	/***********************************************************************************************
+	 * @param gyroCompensation bias table to apply to gyroscope readings, or null to turn 
+	 * compensation off. Takes effect from the next thermometer poll.
+	 ***********************************************************************************************/
+	public void setGyroCompensation(GyroTemperatureCompensation gyroCompensation) {
+		this.gyroCompensation = gyroCompensation;
+		if(gyroCompensation == null){
+			gyroBias[0] = gyroBias[1] = gyroBias[2] = 0f;
+		}
+	}
+
+	/***********************************************************************************************
+	 * @return how long the last call to initialize() took, in nanoseconds
+	 ***********************************************************************************************/
+	public long getInitializationNanos() {
+		return initializationNanos;
+	}
+
+	/***********************************************************************************************
+	 * @return number of control registers the last call to initialize() had to write. Zero means
+	 * the device was already configured as requested (a warm start).
+	 ***********************************************************************************************/
+	public int getConfigRegistersWritten() {
+		return configRegistersWritten;
+	}
+
 	public AccelerometerScale getAccelerometerScale() {
 		return accelerometerScale;
 	}
@@ -0,0 +1,261 @@
+package com.nainara.lsm9ds1;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/*************************************************************************************************
+ *
+ * Table of gyroscope zero-rate bias against die temperature, in 1 degree C bins covering the
+ * LSM9DS1 operating range of -40 to +85 C.
+ *
+ * The table is learned online: while learning is enabled, readings are collected in short windows
+ * (restWindow readings at one temperature). A window counts as at rest when the variance of every
+ * gyroscope and accelerometer axis over it is below the configured thresholds, and its mean rates
+ * are then averaged into the bin of the current temperature. Gating on variance rather than on
+ * the size of the rates keeps slow rotations, which still show in the spread of the readings, out
+ * of the table. Each bin keeps a running mean that turns into a slow moving average once it holds
+ * maxSamplesPerBin readings, so it keeps tracking ageing of the sensor. Bias between learned bins
+ * is interpolated linearly, and held constant beyond the outermost learned bins.
+ *
+ * The Driver looks the bias up only when the temperature is polled and subtracts it while
+ * decoding gyroscope readings, so compensation costs nothing extra per sample.
+ *
+ * Sample usage:
+ *
+ * GyroTemperatureCompensation compensation = new GyroTemperatureCompensation();
+ * compensation.load(Paths.get("gyro-bias.csv"));
+ * compensation.setLearning(true);
+ * driver.setGyroCompensation(compensation);
+ * ...
+ * compensation.save(Paths.get("gyro-bias.csv"));
+ *
+ *************************************************************************************************/
+public class GyroTemperatureCompensation {
+
+	public static final int MIN_TEMPERATURE = -40;
+	public static final int MAX_TEMPERATURE = 85;
+	private static final int BINS = MAX_TEMPERATURE - MIN_TEMPERATURE + 1;
+
+	//Mean bias per bin, degrees per second
+	private final float[] biasX = new float[BINS];
+	private final float[] biasY = new float[BINS];
+	private final float[] biasZ = new float[BINS];
+	private final int[] samples = new int[BINS];
+
+	private volatile boolean isLearning = false;
+
+	//Largest variance on any gyroscope axis (dps squared) for a window to count as at rest
+	private float restGyroVariance = 0.05f;
+
+	//Largest variance on any accelerometer axis (g squared) for a window to count as at rest
+	private float restAccelVariance = 0.0001f;
+
+	//Readings per rest window
+	private int restWindow = 64;
+
+	//Current rest window: bin, readings, and per axis sums and sums of squares (gyro x y z, acc x y z)
+	private int windowBin = -1;
+	private int windowCount = 0;
+	private final double[] windowSum = new double[6];
+	private final double[] windowSumSquares = new double[6];
+
+	//Readings after which a bin switches from a running mean to a moving average
+	private int maxSamplesPerBin = 10000;
+
+	/****************************************************************************************
+	 * Adds a raw (uncompensated) reading to the current rest window. When the window is full
+	 * and the device was at rest throughout, its mean rates are averaged into the bin of the
+	 * given temperature. A change of bin starts a new window.
+	 * @return true if the reading completed a window that was used
+	 ****************************************************************************************/
+	public synchronized boolean learn(float temperature, float gyrX, float gyrY, float gyrZ, float accX, float accY, float accZ){
+		int bin = toBin(temperature);
+		if(bin != windowBin){
+			resetWindow(bin);
+		}
+		addToWindow(0, gyrX);
+		addToWindow(1, gyrY);
+		addToWindow(2, gyrZ);
+		addToWindow(3, accX);
+		addToWindow(4, accY);
+		addToWindow(5, accZ);
+		if(++windowCount < restWindow){
+			return false;
+		}
+		boolean isAtRest = true;
+		for(int axis=0; axis < 6 && isAtRest; axis++){
+			isAtRest = windowVariance(axis) <= (axis < 3 ? restGyroVariance : restAccelVariance);
+		}
+		if(isAtRest){
+			samples[bin] = Math.min(maxSamplesPerBin, samples[bin] + windowCount);
+			float weight = Math.min(1f, (float) windowCount / samples[bin]);
+			biasX[bin] += ((float) (windowSum[0] / windowCount) - biasX[bin]) * weight;
+			biasY[bin] += ((float) (windowSum[1] / windowCount) - biasY[bin]) * weight;
+			biasZ[bin] += ((float) (windowSum[2] / windowCount) - biasZ[bin]) * weight;
+		}
+		resetWindow(bin);
+		return isAtRest;
+	}
+
+	private void addToWindow(int axis, float value){
+		windowSum[axis] += value;
+		windowSumSquares[axis] += (double) value * value;
+	}
+
+	private double windowVariance(int axis){
+		double mean = windowSum[axis] / windowCount;
+		return Math.max(0, windowSumSquares[axis] / windowCount - mean * mean);
+	}
+
+	private void resetWindow(int bin){
+		windowBin = bin;
+		windowCount = 0;
+		for(int axis=0; axis < 6; axis++){
+			windowSum[axis] = windowSumSquares[axis] = 0;
+		}
+	}
+
+	/****************************************************************************************
+	 * @param temperature die temperature in degrees C
+	 * @param bias receives the x, y and z bias in degrees per second. All zero if nothing has
+	 * been learned yet.
+	 ****************************************************************************************/
+	public synchronized void getBias(float temperature, float[] bias){
+		float position = Math.max(MIN_TEMPERATURE, Math.min(MAX_TEMPERATURE, temperature)) - MIN_TEMPERATURE;
+		int below = -1;
+		for(int bin=(int) Math.floor(position); bin >= 0; bin--){
+			if(samples[bin] > 0){
+				below = bin;
+				break;
+			}
+		}
+		int above = -1;
+		for(int bin=(int) Math.ceil(position); bin < BINS; bin++){
+			if(samples[bin] > 0){
+				above = bin;
+				break;
+			}
+		}
+		if(below < 0 && above < 0){
+			bias[0] = bias[1] = bias[2] = 0f;
+			return;
+		}
+		if(below < 0 || above < 0 || below == above){
+			int bin = below < 0 ? above : below;
+			bias[0] = biasX[bin];
+			bias[1] = biasY[bin];
+			bias[2] = biasZ[bin];
+			return;
+		}
+		float fraction = (position - below) / (above - below);
+		bias[0] = biasX[below] + (biasX[above] - biasX[below]) * fraction;
+		bias[1] = biasY[below] + (biasY[above] - biasY[below]) * fraction;
+		bias[2] = biasZ[below] + (biasZ[above] - biasZ[below]) * fraction;
+	}
+
+	/****************************************************************************************
+	 * Writes the learned bins as CSV lines of: temperature, biasX, biasY, biasZ, samples
+	 ****************************************************************************************/
+	public synchronized void save(Path path) throws IOException{
+		try(BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.US_ASCII)){
+			writer.write("#temperatureC,biasX,biasY,biasZ,samples");
+			writer.newLine();
+			for(int bin=0; bin < BINS; bin++){
+				if(samples[bin] == 0){
+					continue;
+				}
+				writer.write(String.format(Locale.ROOT, "%d,%.6f,%.6f,%.6f,%d",
+						bin + MIN_TEMPERATURE, biasX[bin], biasY[bin], biasZ[bin], samples[bin]));
+				writer.newLine();
+			}
+		}
+	}
+
+	/****************************************************************************************
+	 * Replaces the table with one written by save()
+	 ****************************************************************************************/
+	public synchronized void load(Path path) throws IOException{
+		clear();
+		try(BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.US_ASCII)){
+			String line;
+			while((line = reader.readLine()) != null){
+				line = line.trim();
+				if(line.isEmpty() || line.startsWith("#")){
+					continue;
+				}
+				String[] fields = line.split(",");
+				if(fields.length != 5){
+					throw new IOException("Malformed gyro compensation entry: " + line);
+				}
+				try{
+					int bin = toBin(Integer.parseInt(fields[0].trim()));
+					biasX[bin] = Float.parseFloat(fields[1].trim());
+					biasY[bin] = Float.parseFloat(fields[2].trim());
+					biasZ[bin] = Float.parseFloat(fields[3].trim());
+					samples[bin] = Math.min(maxSamplesPerBin, Integer.parseInt(fields[4].trim()));
+				}catch(NumberFormatException e){
+					throw new IOException("Malformed gyro compensation entry: " + line, e);
+				}
+			}
+		}
+	}
+
+	public synchronized void clear(){
+		for(int bin=0; bin < BINS; bin++){
+			biasX[bin] = biasY[bin] = biasZ[bin] = 0f;
+			samples[bin] = 0;
+		}
+		resetWindow(-1);
+	}
+
+	private static int toBin(float temperature){
+		int bin = Math.round(temperature) - MIN_TEMPERATURE;
+		return Math.max(0, Math.min(BINS - 1, bin));
+	}
+
+	public boolean isLearning() {
+		return isLearning;
+	}
+
+	public void setLearning(boolean isLearning) {
+		this.isLearning = isLearning;
+	}
+
+	public float getRestGyroVariance() {
+		return restGyroVariance;
+	}
+
+	public void setRestGyroVariance(float restGyroVariance) {
+		this.restGyroVariance = restGyroVariance;
+	}
+
+	public float getRestAccelVariance() {
+		return restAccelVariance;
+	}
+
+	public void setRestAccelVariance(float restAccelVariance) {
+		this.restAccelVariance = restAccelVariance;
+	}
+
+	public synchronized int getRestWindow() {
+		return restWindow;
+	}
+
+	public synchronized void setRestWindow(int restWindow) {
+		this.restWindow = Math.max(2, restWindow);
+		resetWindow(-1);
+	}
+
+	public int getMaxSamplesPerBin() {
+		return maxSamplesPerBin;
+	}
+
+	public void setMaxSamplesPerBin(int maxSamplesPerBin) {
+		this.maxSamplesPerBin = Math.max(1, maxSamplesPerBin);
+	}
+}
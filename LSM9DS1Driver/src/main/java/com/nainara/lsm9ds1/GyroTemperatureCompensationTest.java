@@ -0,0 +1,104 @@
+package com.nainara.lsm9ds1;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/*************************************************************************************************
+ *
+ * Checks GyroTemperatureCompensation and the thermometer scale without an IMU: bias learned at
+ * two temperatures is interpolated between their bins and held beyond them, a slow rotation is
+ * not learned as bias, the table survives a save and load, and raw thermometer readings convert
+ * at 16 LSB per degree C around 25 C.
+ *
+ *************************************************************************************************/
+public class GyroTemperatureCompensationTest {
+
+	private static final float TOLERANCE = 0.01f;
+
+	public static void main(String[] args) {
+		Random random = new Random(42);
+		GyroTemperatureCompensation compensation = new GyroTemperatureCompensation();
+		compensation.setLearning(true);
+
+		//Device at rest with sensor noise, bias (1, 2, 3) at 20 C and (2, 4, 6) at 30 C
+		feedAtRest(compensation, random, 20f, 1f, 2f, 3f);
+		feedAtRest(compensation, random, 30f, 2f, 4f, 6f);
+
+		float[] bias = new float[3];
+		compensation.getBias(25f, bias);
+		report("Bias halfway between learned bins", bias, 1.5f, 3f, 4.5f);
+		compensation.getBias(22.5f, bias);
+		report("Bias a quarter of the way between learned bins", bias, 1.25f, 2.5f, 3.75f);
+		compensation.getBias(-10f, bias);
+		report("Bias below the lowest learned bin", bias, 1f, 2f, 3f);
+		compensation.getBias(60f, bias);
+		report("Bias above the highest learned bin", bias, 2f, 4f, 6f);
+
+		//A slow rotation of a few dps, with 1g on the accelerometer, must not be learned as bias
+		int used = 0;
+		for(int i=0; i < 10 * compensation.getRestWindow(); i++){
+			double angle = i * 0.05;
+			float rate = (float) (3 * Math.sin(angle));
+			used += compensation.learn(40f, rate, 0f, 0f, (float) Math.sin(angle / 50), 0f, (float) Math.cos(angle / 50)) ? 1 : 0;
+		}
+		compensation.getBias(40f, bias);
+		System.out.println(used == 0 ? "Slow rotation was not learned as bias OK" : "MISMATCH, slow rotation was learned " + used + " times");
+		report("Bias at 40 C after the rotation", bias, 2f, 4f, 6f);
+
+		Path path = null;
+		try {
+			path = Files.createTempFile("lsm9ds1-gyro-bias", ".csv");
+			compensation.save(path);
+			GyroTemperatureCompensation loaded = new GyroTemperatureCompensation();
+			loaded.load(path);
+			boolean isSame = true;
+			float[] expected = new float[3];
+			for(float temperature=GyroTemperatureCompensation.MIN_TEMPERATURE; temperature <= GyroTemperatureCompensation.MAX_TEMPERATURE; temperature += 0.5f){
+				compensation.getBias(temperature, expected);
+				loaded.getBias(temperature, bias);
+				for(int axis=0; axis < 3; axis++){
+					isSame &= Math.abs(expected[axis] - bias[axis]) < 1e-5f;
+				}
+			}
+			System.out.println(isSame ? "Save and load round trip OK" : "MISMATCH after save and load");
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				if(path != null) Files.deleteIfExists(path);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		checkTemperature((short) 0, 25f);
+		checkTemperature((short) 16, 26f);
+		checkTemperature((short) -400, 0f);
+		checkTemperature((short) 1000, 87.5f);
+		checkTemperature((short) -1, 24.9375f);
+	}
+
+	private static void feedAtRest(GyroTemperatureCompensation compensation, Random random, float temperature, float x, float y, float z){
+		for(int i=0; i < 100 * compensation.getRestWindow(); i++){
+			compensation.learn(temperature,
+					x + noise(random, 0.1f), y + noise(random, 0.1f), z + noise(random, 0.1f),
+					noise(random, 0.004f), noise(random, 0.004f), 1f + noise(random, 0.004f));
+		}
+	}
+
+	private static float noise(Random random, float deviation){
+		return (float) random.nextGaussian() * deviation;
+	}
+
+	private static void report(String label, float[] bias, float x, float y, float z){
+		boolean isOk = Math.abs(bias[0] - x) < TOLERANCE && Math.abs(bias[1] - y) < TOLERANCE && Math.abs(bias[2] - z) < TOLERANCE;
+		System.out.println(label + " [" + bias[0] + ", " + bias[1] + ", " + bias[2] + "] " + (isOk ? "OK" : "MISMATCH, expected [" + x + ", " + y + ", " + z + "]"));
+	}
+
+	private static void checkTemperature(short raw, float expected){
+		float temperature = Driver.normalizeTemperature((byte) (raw >> 8), (byte) raw);
+		System.out.println("Raw temperature " + raw + " is " + temperature + " C " + (temperature == expected ? "OK" : "MISMATCH, expected " + expected));
+	}
+}
@@ -83,4 +83,7 @@ public class LSM9DS1Const {
 	public static final byte byte_SRC_M 		= 0x31; // r Magnetic byteerrupt generator status register
 	public static final byte byte_THS_L_M 		= 0x32; // r Magnetic byteerrupt generator
 	public static final byte byte_THS_H_M 		= 0x33; // r threshold
+	
+	/* Fixed values of the identification registers */
+	public static final byte WHO_AM_I_AG_RSP 	= 0x68; // Expected value of WHO_AM_I on the accelerometer/gyroscope
 }
@@ -11,6 +11,9 @@ public class Polling {
 	private float accY;
 	private float accZ;
 	
+	//Host time in nanoseconds (System.nanoTime) at which the reading was taken by the IMU
+	private long timestamp;
+	
 	public void pollDriver(Driver driver){
 		this.gyrPitchX = driver.getGyrPitchX();
 		this.gyrRollY = driver.getGyrRollY();
@@ -70,4 +73,10 @@ public class Polling {
 	public void setAccZ(float accZ) {
 		this.accZ = accZ;
 	}
+	public long getTimestamp() {
+		return timestamp;
+	}
+	public void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+	}
 }
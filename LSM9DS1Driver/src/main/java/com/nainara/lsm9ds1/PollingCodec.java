@@ -0,0 +1,48 @@
+package com.nainara.lsm9ds1;
+
+import java.nio.ByteBuffer;
+
+/*************************************************************************************************
+ * 
+ * Fixed-width binary encoding of a single Polling. Each record is the sample timestamp followed 
+ * by the gyroscope and accelerometer axes, written in the byte order of the target buffer:
+ * 
+ * long timestamp (ns), float gyrPitchX, float gyrRollY, float gyrYawZ, float accX, float accY, 
+ * float accZ
+ * 
+ *************************************************************************************************/
+public class PollingCodec {
+	
+	//Size in bytes of one encoded Polling
+	public static final int RECORD_SIZE = 8 + 6 * 4;
+	
+	private PollingCodec() {
+	}
+	
+	/****************************************************************************************
+	 * Writes the polling at the buffer's current position and advances it by RECORD_SIZE
+	 ****************************************************************************************/
+	public static void write(ByteBuffer buffer, Polling polling){
+		buffer.putLong(polling.getTimestamp());
+		buffer.putFloat(polling.getGyrPitchX());
+		buffer.putFloat(polling.getGyrRollY());
+		buffer.putFloat(polling.getGyrYawZ());
+		buffer.putFloat(polling.getAccX());
+		buffer.putFloat(polling.getAccY());
+		buffer.putFloat(polling.getAccZ());
+	}
+	
+	/****************************************************************************************
+	 * Reads a record at the buffer's current position into the supplied polling and advances 
+	 * the position by RECORD_SIZE
+	 ****************************************************************************************/
+	public static void read(ByteBuffer buffer, Polling polling){
+		polling.setTimestamp(buffer.getLong());
+		polling.setGyrPitchX(buffer.getFloat());
+		polling.setGyrRollY(buffer.getFloat());
+		polling.setGyrYawZ(buffer.getFloat());
+		polling.setAccX(buffer.getFloat());
+		polling.setAccY(buffer.getFloat());
+		polling.setAccZ(buffer.getFloat());
+	}
+}
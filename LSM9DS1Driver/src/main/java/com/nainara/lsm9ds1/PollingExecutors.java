@@ -0,0 +1,130 @@
+package com.nainara.lsm9ds1;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*************************************************************************************************
+ *
+ * Thread factories and schedulers for running AsyncPollingHelper drains.
+ *
+ * - platformThreads: ordinary platform threads, the default for a single device.
+ * - realTimeThreads: platform threads at a raised priority, with an optional hook that runs on
+ *   the new thread before any drain. Use the hook to pin the thread to a core (e.g. via taskset or
+ *   a native affinity library). Note that most JVMs on Linux only honour thread priorities when
+ *   started with -XX:ThreadPriorityPolicy=1 and sufficient privileges.
+ * - virtualThreads: virtual threads when the runtime supports them (Java 21+). Falls back to
+ *   daemon platform threads on older runtimes. Give the factory to each helper with
+ *   AsyncPollingHelper.setThreadFactory(), so every device waits for its drains on its own virtual
+ *   thread and dozens of simulated or replayed devices share a handful of carrier threads. A
+ *   scheduler from newScheduler(n, virtualThreads(...)) only ever starts n long-lived workers, so
+ *   its devices still queue for n threads just as with a platform pool.
+ *
+ * Sample usage, many devices sharing a few threads:
+ *
+ * ScheduledExecutorService scheduler = PollingExecutors.newScheduler(4, PollingExecutors.platformThreads("imu"));
+ * AsyncPollingHelper helper = new AsyncPollingHelper(driver, scheduler);
+ *
+ * Sample usage, one virtual thread per device:
+ *
+ * ThreadFactory virtual = PollingExecutors.virtualThreads("imu");
+ * AsyncPollingHelper helper = new AsyncPollingHelper(driver);
+ * helper.setThreadFactory(virtual);
+ *
+ *************************************************************************************************/
+public class PollingExecutors {
+
+	private PollingExecutors() {
+	}
+
+	/****************************************************************************************
+	 * @return a scheduler with a single thread from the given factory
+	 ****************************************************************************************/
+	public static ScheduledExecutorService newScheduler(ThreadFactory threadFactory){
+		return newScheduler(1, threadFactory);
+	}
+
+	/****************************************************************************************
+	 * @param threads number of threads the drains of all helpers sharing the scheduler run on
+	 * @return a scheduler that discards cancelled drains straight away, so helpers can be
+	 * started and stopped repeatedly without leaking tasks
+	 ****************************************************************************************/
+	public static ScheduledExecutorService newScheduler(int threads, ThreadFactory threadFactory){
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(threads, threadFactory);
+		scheduler.setRemoveOnCancelPolicy(true);
+		return scheduler;
+	}
+
+	/****************************************************************************************
+	 * @param name prefix of the thread names
+	 ****************************************************************************************/
+	public static ThreadFactory platformThreads(String name){
+		return realTimeThreads(name, Thread.NORM_PRIORITY, null);
+	}
+
+	/****************************************************************************************
+	 * @param name prefix of the thread names
+	 * @param priority java thread priority, typically Thread.MAX_PRIORITY
+	 * @param affinityHook run on each new thread before it takes any work. May be null.
+	 ****************************************************************************************/
+	public static ThreadFactory realTimeThreads(String name, int priority, Runnable affinityHook){
+		AtomicInteger count = new AtomicInteger();
+		return task -> {
+			Runnable body = affinityHook == null ? task : () -> {
+				affinityHook.run();
+				task.run();
+			};
+			Thread thread = new Thread(body, name + "-" + count.getAndIncrement());
+			thread.setPriority(priority);
+			return thread;
+		};
+	}
+
+	/****************************************************************************************
+	 * @param name prefix of the thread names
+	 * @return a virtual thread factory, or a daemon platform thread factory if the runtime has
+	 * no virtual threads
+	 ****************************************************************************************/
+	public static ThreadFactory virtualThreads(String name){
+		ThreadFactory factory = newVirtualThreadFactory(name);
+		if(factory != null){
+			return factory;
+		}
+		System.err.println("Warning. Virtual threads are not available on this runtime, using daemon platform threads.");
+		ThreadFactory platform = platformThreads(name);
+		return task -> {
+			Thread thread = platform.newThread(task);
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	/****************************************************************************************
+	 * @return true if virtualThreads() will produce real virtual threads. Uses the same probe
+	 * as virtualThreads(), so it is also false on Java 19/20 without --enable-preview.
+	 ****************************************************************************************/
+	public static boolean isVirtualThreadSupported(){
+		return newVirtualThreadFactory("probe") != null;
+	}
+
+	/****************************************************************************************
+	 * Builds a virtual thread factory and creates (without starting) one thread from it
+	 * @return the factory, or null if the runtime cannot create virtual threads
+	 ****************************************************************************************/
+	private static ThreadFactory newVirtualThreadFactory(String name){
+		//Looked up reflectively so the driver still builds and runs on Java 8
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+			Method factoryMethod = builderClass.getMethod("factory");
+			ThreadFactory factory = (ThreadFactory) factoryMethod.invoke(builder);
+			factory.newThread(() -> {});
+			return factory;
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package com.nainara.lsm9ds1;
+
+/*************************************************************************************************
+ * 
+ * Receives each batch of IMU readings as it is drained from the device FIFO buffer. Listeners are
+ * invoked on the polling thread once per drain, so implementations should return quickly and
+ * hand any heavy lifting off to another thread.
+ * 
+ *************************************************************************************************/
+public interface PollingListener {
+	
+	/****************************************************************************************
+	 * @param pollings readings from the drain, oldest first. The array is reused between 
+	 * drains, and replayed sessions also reuse the Polling instances, so copy out any values 
+	 * that must outlive the call.
+	 * @param count number of valid entries at the start of the pollings array
+	 ****************************************************************************************/
+	void onPollings(Polling[] pollings, int count);
+}
@@ -0,0 +1,186 @@
+package com.nainara.lsm9ds1;
+
+/*************************************************************************************************
+ *
+ * SampleResampler keeps the recent readings of one IMU in a preallocated ring and interpolates
+ * them at arbitrary times on the host clock. Register it as a PollingListener on the device's
+ * AsyncPollingHelper (or a SessionReplay), and query it through a ClockAligner to put several
+ * devices on a common fixed-rate clock.
+ *
+ * Readings are interpolated linearly or with a Catmull-Rom cubic through the four surrounding
+ * readings. A time that is not bracketed by readings at most maxGapNs apart is reported as a gap.
+ * Cubic interpolation falls back to linear next to a gap or at the ends of the ring.
+ *
+ * The ring must span at least the delay at which the ClockAligner samples it. The default of 256
+ * readings covers about half a second at 476hz.
+ *
+ *************************************************************************************************/
+public class SampleResampler implements PollingListener {
+
+	//Values per reading: gyroscope x, y, z, then accelerometer x, y, z
+	public static final int CHANNELS = 6;
+	public static final int GYR_PITCH_X = 0;
+	public static final int GYR_ROLL_Y = 1;
+	public static final int GYR_YAW_Z = 2;
+	public static final int ACC_X = 3;
+	public static final int ACC_Y = 4;
+	public static final int ACC_Z = 5;
+
+	public enum Interpolation{
+		LINEAR,
+		CUBIC
+	}
+
+	//Ring of readings, indexed by absolute reading number masked to the capacity
+	private final int mask;
+	private final long[] timestamps;
+	private final float[] values;
+
+	//Number of readings ever written, and the absolute index the last lookup started from
+	private long written = 0;
+	private long cursor = 0;
+
+	private Interpolation interpolation = Interpolation.LINEAR;
+
+	//Largest spacing between readings that is interpolated across
+	private long maxGapNs;
+
+	/***********************************************************************************************
+	 * @param datarate nominal rate of the device. Gaps are readings more than 4 periods apart.
+	 ***********************************************************************************************/
+	public SampleResampler(Driver.DataRate datarate) {
+		this(256, Math.round(4 * 1000000000d / datarate.getHz()));
+	}
+
+	/***********************************************************************************************
+	 * @param capacity readings held in the ring, rounded up to a power of two
+	 * @param maxGapNs largest spacing between readings that is interpolated across
+	 ***********************************************************************************************/
+	public SampleResampler(int capacity, long maxGapNs) {
+		int size = Integer.highestOneBit(Math.max(4, capacity - 1)) << 1;
+		this.mask = size - 1;
+		this.timestamps = new long[size];
+		this.values = new float[size * CHANNELS];
+		this.maxGapNs = maxGapNs;
+	}
+
+	/****************************************************************************************
+	 * Appends the readings to the ring. Timestamps must increase; a reading stamped at or
+	 * before its predecessor (e.g. from jitter between FIFO drains) is nudged to just after it.
+	 ****************************************************************************************/
+	@Override
+	public synchronized void onPollings(Polling[] pollings, int count){
+		for(int i=0; i < count; i++){
+			Polling polling = pollings[i];
+			long timestamp = polling.getTimestamp();
+			if(written > 0){
+				long previous = timestamps[(int) ((written - 1) & mask)];
+				if(timestamp <= previous){
+					timestamp = previous + 1;
+				}
+			}
+			int slot = (int) (written & mask);
+			int offset = slot * CHANNELS;
+			timestamps[slot] = timestamp;
+			values[offset + GYR_PITCH_X] = polling.getGyrPitchX();
+			values[offset + GYR_ROLL_Y] = polling.getGyrRollY();
+			values[offset + GYR_YAW_Z] = polling.getGyrYawZ();
+			values[offset + ACC_X] = polling.getAccX();
+			values[offset + ACC_Y] = polling.getAccY();
+			values[offset + ACC_Z] = polling.getAccZ();
+			written++;
+		}
+	}
+
+	/****************************************************************************************
+	 * Interpolates all channels at the given time. Lookups are cheapest when times increase
+	 * from call to call.
+	 * @param timestamp host time in nanoseconds (System.nanoTime)
+	 * @param out receives CHANNELS values starting at offset. Untouched on a gap.
+	 * @return false if the time falls in a gap, before the oldest reading held or at or after
+	 * the newest
+	 ****************************************************************************************/
+	public synchronized boolean interpolate(long timestamp, float[] out, int offset){
+		if(written < 2){
+			return false;
+		}
+		long oldest = Math.max(0, written - (mask + 1));
+		if(cursor < oldest){
+			cursor = oldest;
+		}
+		while(cursor > oldest && timestampAt(cursor) > timestamp){
+			cursor--;
+		}
+		while(cursor + 1 < written && timestampAt(cursor + 1) <= timestamp){
+			cursor++;
+		}
+		if(cursor + 1 >= written || timestampAt(cursor) > timestamp){
+			return false;
+		}
+		long t0 = timestampAt(cursor);
+		long t1 = timestampAt(cursor + 1);
+		if(t1 - t0 > maxGapNs){
+			return false;
+		}
+		float u = (float) (timestamp - t0) / (t1 - t0);
+		int i1 = (int) (cursor & mask) * CHANNELS;
+		int i2 = (int) ((cursor + 1) & mask) * CHANNELS;
+
+		if(interpolation == Interpolation.CUBIC && cursor > oldest && cursor + 2 < written
+				&& t0 - timestampAt(cursor - 1) <= maxGapNs && timestampAt(cursor + 2) - t1 <= maxGapNs){
+			int i0 = (int) ((cursor - 1) & mask) * CHANNELS;
+			int i3 = (int) ((cursor + 2) & mask) * CHANNELS;
+			float u2 = u * u;
+			float u3 = u2 * u;
+			for(int c=0; c < CHANNELS; c++){
+				float p0 = values[i0 + c];
+				float p1 = values[i1 + c];
+				float p2 = values[i2 + c];
+				float p3 = values[i3 + c];
+				out[offset + c] = 0.5f * (2 * p1 + (p2 - p0) * u + (2 * p0 - 5 * p1 + 4 * p2 - p3) * u2 + (3 * p1 - p0 - 3 * p2 + p3) * u3);
+			}
+		}else{
+			for(int c=0; c < CHANNELS; c++){
+				float p1 = values[i1 + c];
+				out[offset + c] = p1 + (values[i2 + c] - p1) * u;
+			}
+		}
+		return true;
+	}
+
+	private long timestampAt(long index){
+		return timestamps[(int) (index & mask)];
+	}
+
+	/****************************************************************************************
+	 * @return timestamp of the newest reading held, or Long.MIN_VALUE if there is none
+	 ****************************************************************************************/
+	public synchronized long getNewestTimestamp(){
+		return written == 0 ? Long.MIN_VALUE : timestampAt(written - 1);
+	}
+
+	public synchronized void clear(){
+		written = 0;
+		cursor = 0;
+	}
+
+	public int getCapacity(){
+		return mask + 1;
+	}
+
+	public Interpolation getInterpolation() {
+		return interpolation;
+	}
+
+	public void setInterpolation(Interpolation interpolation) {
+		this.interpolation = interpolation;
+	}
+
+	public long getMaxGapNs() {
+		return maxGapNs;
+	}
+
+	public void setMaxGapNs(long maxGapNs) {
+		this.maxGapNs = maxGapNs;
+	}
+}
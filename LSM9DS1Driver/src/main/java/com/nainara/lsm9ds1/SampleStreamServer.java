@@ -0,0 +1,647 @@
+package com.nainara.lsm9ds1;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/*************************************************************************************************
+ *
+ * SampleStreamServer publishes IMU readings to consumers on the local machine or LAN. It is
+ * registered as a PollingListener on an AsyncPollingHelper, and every FIFO drain is encoded once
+ * into a reusable direct buffer as a binary frame (all values big-endian):
+ *
+ * int magic ("LSM9"), short version, short sampleCount, long sequence, int deviceId, followed by
+ * sampleCount records in the PollingCodec layout.
+ *
+ * A batch of more than MAX_SAMPLES_PER_FRAME readings, e.g. from a SessionReplay with a large
+ * batch size, is split over consecutive frames. Registered directly, the server streams a single
+ * device with id 0. To stream several devices through one server, register a listener from
+ * newDeviceStream() on each helper instead; every device has its own sequence numbers, and frames
+ * from different drain threads are encoded one at a time.
+ *
+ * Frames are fanned out to any number of TCP clients and, optionally, to a UDP multicast group
+ * as one datagram per frame. The multicast channel is non-blocking; a datagram the socket cannot
+ * take straight away is dropped and counted. A TCP client is written to straight from the frame
+ * buffer for as long as its socket keeps up. When the socket would block, the unsent remainder
+ * is copied into a small per-client queue of preallocated buffers that the selector thread
+ * flushes. Once that queue is full the client is considered slow and handled according to the
+ * SlowClientPolicy, so one lagging consumer can never stall the polling thread.
+ *
+ * Sample usage:
+ *
+ * SampleStreamServer server = new SampleStreamServer(new InetSocketAddress(9100));
+ * server.setMulticastGroup(new InetSocketAddress("239.0.0.19", 9101));
+ * server.start();
+ * helper.addPollingListener(server);
+ * helper.beginPolling();
+ * ...
+ * helper.endPolling();
+ * server.stop();
+ *
+ *************************************************************************************************/
+public class SampleStreamServer implements PollingListener {
+
+	public static final int FRAME_MAGIC = 0x4C534D39;
+	public static final short FRAME_VERSION = 2;
+	public static final int HEADER_SIZE = 4 + 2 + 2 + 8 + 4;
+	public static final int MAX_SAMPLES_PER_FRAME = 32;
+	public static final int MAX_FRAME_SIZE = HEADER_SIZE + MAX_SAMPLES_PER_FRAME * PollingCodec.RECORD_SIZE;
+
+	/**
+	 * What to do with a TCP client whose send queue has filled up
+	 */
+	public enum SlowClientPolicy{
+		//Discard frames that do not fit and keep the connection open
+		DROP_FRAMES,
+		//Close the connection
+		DISCONNECT
+	}
+
+	/******************************************************************
+	 * Configuration variables
+	 ******************************************************************/
+	private InetSocketAddress bindAddress;
+
+	//Multicast destination. Multicast is disabled while this is null
+	private InetSocketAddress multicastGroup = null;
+	private NetworkInterface multicastInterface = null;
+
+	//Default TTL keeps multicast datagrams on the local subnet
+	private int multicastTtl = 1;
+
+	//Number of frames that may be waiting on a single TCP client before it is considered slow
+	private int maxQueuedFrames = 64;
+
+	private SlowClientPolicy slowClientPolicy = SlowClientPolicy.DROP_FRAMES;
+
+	/******************************************************************
+	 * Runtime state
+	 ******************************************************************/
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private volatile DatagramChannel multicastChannel;
+	private Thread selectorThread;
+	private volatile boolean isRunning = false;
+
+	//Connected clients, and clients waiting for the selector thread to watch for writability
+	private final List<Client> clients = new CopyOnWriteArrayList<>();
+	private final Queue<Client> pendingWriteInterest = new ConcurrentLinkedQueue<>();
+
+	//Reusable frame buffer. Encoding and sending a frame holds its lock, so drains of several
+	//devices never interleave
+	private final ByteBuffer frame = ByteBuffer.allocateDirect(MAX_FRAME_SIZE);
+	private volatile long framesEncoded = 0;
+
+	//Stream used when the server itself is registered as a listener
+	private final DeviceStream defaultStream = new DeviceStream(0);
+
+	private volatile long multicastFramesSent = 0;
+	private volatile long multicastBytesSent = 0;
+	private volatile long multicastFramesDropped = 0;
+
+	/***********************************************************************************************
+	 * @param bindAddress local address and port that TCP clients connect to. Use port 0 to have
+	 * the operating system pick a free port, see getLocalPort()
+	 ***********************************************************************************************/
+	public SampleStreamServer(InetSocketAddress bindAddress) {
+		this.bindAddress = bindAddress;
+	}
+
+	/****************************************************************************************
+	 * Opens the listening socket (and the multicast channel, if configured) and starts the
+	 * selector thread
+	 ****************************************************************************************/
+	public synchronized void start() throws IOException{
+		if(isRunning){
+			return;
+		}
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.configureBlocking(false);
+		serverChannel.bind(bindAddress);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+		if(multicastGroup != null){
+			ProtocolFamily family = multicastGroup.getAddress() instanceof Inet6Address
+					? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET;
+			multicastChannel = DatagramChannel.open(family);
+			multicastChannel.configureBlocking(false);
+			multicastChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, multicastTtl);
+			multicastChannel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+			if(multicastInterface != null){
+				multicastChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, multicastInterface);
+			}
+		}
+
+		isRunning = true;
+		selectorThread = new Thread(this::runSelector, "lsm9ds1-stream-server");
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+	}
+
+	/****************************************************************************************
+	 * Disconnects all clients and releases the sockets. The server may be started again.
+	 ****************************************************************************************/
+	public synchronized void stop(){
+		if(!isRunning){
+			return;
+		}
+		isRunning = false;
+		selector.wakeup();
+		try {
+			selectorThread.join(5000);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		for(Client client : clients){
+			client.close();
+		}
+		pendingWriteInterest.clear();
+		closeQuietly(serverChannel);
+		closeQuietly(multicastChannel);
+		closeQuietly(selector);
+		multicastChannel = null;
+	}
+
+	/****************************************************************************************
+	 * Encodes the drained batch into frames of device 0 and sends them to every client
+	 ****************************************************************************************/
+	@Override
+	public void onPollings(Polling[] pollings, int count){
+		defaultStream.onPollings(pollings, count);
+	}
+
+	/****************************************************************************************
+	 * @param deviceId id written into the header of every frame of the device
+	 * @return a listener to register on the AsyncPollingHelper of one device
+	 ****************************************************************************************/
+	public PollingListener newDeviceStream(int deviceId){
+		return new DeviceStream(deviceId);
+	}
+
+	/**
+	 * Frames the readings of one device, with its own sequence numbers
+	 */
+	private class DeviceStream implements PollingListener{
+		private final int deviceId;
+		private long sequence = 0;
+
+		DeviceStream(int deviceId){
+			this.deviceId = deviceId;
+		}
+
+		@Override
+		public void onPollings(Polling[] pollings, int count){
+			if(!isRunning){
+				return;
+			}
+			synchronized(frame){
+				for(int offset=0; offset < count; offset += MAX_SAMPLES_PER_FRAME){
+					sendFrame(deviceId, sequence++, pollings, offset, Math.min(count, offset + MAX_SAMPLES_PER_FRAME));
+				}
+			}
+		}
+	}
+
+	//Encodes readings [from, to) into one frame and fans it out. Called with the frame lock held
+	private void sendFrame(int deviceId, long sequence, Polling[] pollings, int from, int to){
+		frame.clear();
+		frame.putInt(FRAME_MAGIC)
+			.putShort(FRAME_VERSION)
+			.putShort((short) (to - from))
+			.putLong(sequence)
+			.putInt(deviceId);
+		for(int i=from; i < to; i++){
+			PollingCodec.write(frame, pollings[i]);
+		}
+		frame.flip();
+		framesEncoded++;
+
+		long encodedAt = System.nanoTime();
+		for(Client client : clients){
+			frame.position(0);
+			client.send(frame, encodedAt);
+		}
+
+		DatagramChannel datagram = multicastChannel;
+		if(datagram != null){
+			frame.position(0);
+			try {
+				int sent = datagram.send(frame, multicastGroup);
+				if(sent > 0){
+					multicastFramesSent++;
+					multicastBytesSent += sent;
+				}else{
+					multicastFramesDropped++;
+				}
+			} catch (ClosedChannelException e) {
+				//stop() closed the channel while this frame was being sent
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/***********************************************************************************************************
+	 * Selector thread
+	 ***********************************************************************************************************/
+
+	private void runSelector(){
+		//Clients are not expected to send anything, reads only serve to detect disconnects
+		ByteBuffer discard = ByteBuffer.allocate(256);
+		while(isRunning){
+			try {
+				selector.select();
+			} catch (IOException e) {
+				e.printStackTrace();
+				continue;
+			}
+			Client waiting;
+			while((waiting = pendingWriteInterest.poll()) != null){
+				try{
+					waiting.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}catch(CancelledKeyException e){
+					waiting.close();
+				}
+			}
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while(keys.hasNext()){
+				SelectionKey key = keys.next();
+				keys.remove();
+				if(!key.isValid()){
+					continue;
+				}
+				if(key.isAcceptable()){
+					accept();
+					continue;
+				}
+				Client client = (Client) key.attachment();
+				try {
+					if(key.isReadable()){
+						discard.clear();
+						if(client.channel.read(discard) < 0){
+							client.close();
+							continue;
+						}
+					}
+					if(key.isValid() && key.isWritable()){
+						client.flush();
+					}
+				} catch (IOException | CancelledKeyException e) {
+					client.close();
+				}
+			}
+		}
+	}
+
+	private void accept(){
+		try {
+			SocketChannel channel = serverChannel.accept();
+			if(channel == null){
+				return;
+			}
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+			Client client = new Client(channel, key);
+			key.attach(client);
+			clients.add(client);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static void closeQuietly(java.io.Closeable closeable){
+		if(closeable == null){
+			return;
+		}
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/***********************************************************************************************************
+	 * Per-client state
+	 ***********************************************************************************************************/
+
+	private static class PendingFrame{
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_FRAME_SIZE);
+		int size;
+		long encodedAt;
+	}
+
+	private class Client{
+		final SocketChannel channel;
+		final SelectionKey key;
+		final SocketAddress remoteAddress;
+		final long connectedAt = System.nanoTime();
+
+		//Frames waiting to be written, and spare frames for reuse. Guarded by this
+		final ArrayDeque<PendingFrame> queue = new ArrayDeque<>();
+		final ArrayDeque<PendingFrame> spare = new ArrayDeque<>();
+		int allocatedFrames = 0;
+		boolean isClosed = false;
+
+		//Statistics. Guarded by this
+		long framesSent = 0;
+		long bytesSent = 0;
+		long framesDropped = 0;
+		long totalLatencyNs = 0;
+		long maxLatencyNs = 0;
+
+		Client(SocketChannel channel, SelectionKey key) throws IOException{
+			this.channel = channel;
+			this.key = key;
+			this.remoteAddress = channel.getRemoteAddress();
+		}
+
+		/**
+		 * Called on the polling thread. Writes the frame straight to the socket when nothing is
+		 * queued, otherwise (or if the socket would block) queues the unsent remainder.
+		 */
+		synchronized void send(ByteBuffer frame, long encodedAt){
+			if(isClosed){
+				return;
+			}
+			int size = frame.remaining();
+			try {
+				if(queue.isEmpty()){
+					channel.write(frame);
+					if(!frame.hasRemaining()){
+						recordSent(size, encodedAt);
+						return;
+					}
+				}
+				//A partially written frame always finds room, as the queue was empty
+				PendingFrame pending = obtainFrame();
+				if(pending == null){
+					framesDropped++;
+					if(slowClientPolicy == SlowClientPolicy.DISCONNECT){
+						close();
+					}
+					return;
+				}
+				pending.buffer.clear();
+				pending.buffer.put(frame);
+				pending.buffer.flip();
+				pending.size = size;
+				pending.encodedAt = encodedAt;
+				queue.add(pending);
+				if(queue.size() == 1){
+					pendingWriteInterest.add(this);
+					selector.wakeup();
+				}
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		/**
+		 * Called on the selector thread once the socket is writable again
+		 */
+		synchronized void flush() throws IOException{
+			while(!queue.isEmpty()){
+				PendingFrame pending = queue.peek();
+				channel.write(pending.buffer);
+				if(pending.buffer.hasRemaining()){
+					return;
+				}
+				queue.poll();
+				recordSent(pending.size, pending.encodedAt);
+				spare.push(pending);
+			}
+			key.interestOps(SelectionKey.OP_READ);
+		}
+
+		private PendingFrame obtainFrame(){
+			if(!spare.isEmpty()){
+				return spare.pop();
+			}
+			if(allocatedFrames < maxQueuedFrames){
+				allocatedFrames++;
+				return new PendingFrame();
+			}
+			return null;
+		}
+
+		private void recordSent(int size, long encodedAt){
+			long latency = System.nanoTime() - encodedAt;
+			framesSent++;
+			bytesSent += size;
+			totalLatencyNs += latency;
+			if(latency > maxLatencyNs){
+				maxLatencyNs = latency;
+			}
+		}
+
+		synchronized ClientStats snapshot(){
+			return new ClientStats(remoteAddress, System.nanoTime() - connectedAt, framesSent,
+					bytesSent, framesDropped, queue.size(), totalLatencyNs, maxLatencyNs);
+		}
+
+		synchronized void close(){
+			if(isClosed){
+				return;
+			}
+			isClosed = true;
+			clients.remove(this);
+			queue.clear();
+			spare.clear();
+			key.cancel();
+			closeQuietly(channel);
+		}
+	}
+
+	/***********************************************************************************************************
+	 * Throughput and latency of a single TCP client. Latency is measured from the moment the frame
+	 * was encoded until its last byte was handed to the socket.
+	 ***********************************************************************************************************/
+	public static class ClientStats{
+		private final SocketAddress remoteAddress;
+		private final long connectedNs;
+		private final long framesSent;
+		private final long bytesSent;
+		private final long framesDropped;
+		private final int framesQueued;
+		private final long totalLatencyNs;
+		private final long maxLatencyNs;
+
+		ClientStats(SocketAddress remoteAddress, long connectedNs, long framesSent, long bytesSent,
+				long framesDropped, int framesQueued, long totalLatencyNs, long maxLatencyNs) {
+			this.remoteAddress = remoteAddress;
+			this.connectedNs = connectedNs;
+			this.framesSent = framesSent;
+			this.bytesSent = bytesSent;
+			this.framesDropped = framesDropped;
+			this.framesQueued = framesQueued;
+			this.totalLatencyNs = totalLatencyNs;
+			this.maxLatencyNs = maxLatencyNs;
+		}
+
+		public double getBytesPerSecond(){
+			return connectedNs == 0 ? 0 : bytesSent * 1e9 / connectedNs;
+		}
+
+		public double getFramesPerSecond(){
+			return connectedNs == 0 ? 0 : framesSent * 1e9 / connectedNs;
+		}
+
+		public long getMeanLatencyNs(){
+			return framesSent == 0 ? 0 : totalLatencyNs / framesSent;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("Client ").append(remoteAddress)
+				.append(": frames sent [").append(framesSent)
+				.append("], dropped [").append(framesDropped)
+				.append("], queued [").append(framesQueued)
+				.append("], throughput (bytes/s) [").append(Math.round(getBytesPerSecond()))
+				.append("], latency mean, max (us) [").append(getMeanLatencyNs() / 1000)
+				.append(", ").append(maxLatencyNs / 1000).append("]");
+			return sb.toString();
+		}
+
+		public SocketAddress getRemoteAddress() {
+			return remoteAddress;
+		}
+		public long getConnectedNs() {
+			return connectedNs;
+		}
+		public long getFramesSent() {
+			return framesSent;
+		}
+		public long getBytesSent() {
+			return bytesSent;
+		}
+		public long getFramesDropped() {
+			return framesDropped;
+		}
+		public int getFramesQueued() {
+			return framesQueued;
+		}
+		public long getMaxLatencyNs() {
+			return maxLatencyNs;
+		}
+	}
+
+	/***********************************************************************************************************
+	 * Accessors
+	 ***********************************************************************************************************/
+
+	/****************************************************************************************
+	 * @return a snapshot of the statistics of every connected TCP client
+	 ****************************************************************************************/
+	public List<ClientStats> getClientStats(){
+		List<ClientStats> stats = new ArrayList<>();
+		for(Client client : clients){
+			stats.add(client.snapshot());
+		}
+		return stats;
+	}
+
+	/****************************************************************************************
+	 * @return the TCP port the server is listening on, or -1 if it has not been started
+	 ****************************************************************************************/
+	public int getLocalPort(){
+		ServerSocketChannel channel = serverChannel;
+		if(channel == null || !channel.isOpen()){
+			return -1;
+		}
+		return channel.socket().getLocalPort();
+	}
+
+	public boolean isRunning() {
+		return isRunning;
+	}
+
+	public long getMulticastFramesSent() {
+		return multicastFramesSent;
+	}
+
+	public long getMulticastBytesSent() {
+		return multicastBytesSent;
+	}
+
+	public long getMulticastFramesDropped() {
+		return multicastFramesDropped;
+	}
+
+	/****************************************************************************************
+	 * @return number of frames encoded so far, over all devices
+	 ****************************************************************************************/
+	public long getFramesEncoded() {
+		return framesEncoded;
+	}
+
+	public InetSocketAddress getBindAddress() {
+		return bindAddress;
+	}
+
+	public void setBindAddress(InetSocketAddress bindAddress) {
+		this.bindAddress = bindAddress;
+	}
+
+	public InetSocketAddress getMulticastGroup() {
+		return multicastGroup;
+	}
+
+	public void setMulticastGroup(InetSocketAddress multicastGroup) {
+		this.multicastGroup = multicastGroup;
+	}
+
+	public NetworkInterface getMulticastInterface() {
+		return multicastInterface;
+	}
+
+	public void setMulticastInterface(NetworkInterface multicastInterface) {
+		this.multicastInterface = multicastInterface;
+	}
+
+	public int getMulticastTtl() {
+		return multicastTtl;
+	}
+
+	public void setMulticastTtl(int multicastTtl) {
+		this.multicastTtl = multicastTtl;
+	}
+
+	public int getMaxQueuedFrames() {
+		return maxQueuedFrames;
+	}
+
+	public void setMaxQueuedFrames(int maxQueuedFrames) {
+		this.maxQueuedFrames = Math.max(1, maxQueuedFrames);
+	}
+
+	public SlowClientPolicy getSlowClientPolicy() {
+		return slowClientPolicy;
+	}
+
+	public void setSlowClientPolicy(SlowClientPolicy slowClientPolicy) {
+		this.slowClientPolicy = slowClientPolicy;
+	}
+}
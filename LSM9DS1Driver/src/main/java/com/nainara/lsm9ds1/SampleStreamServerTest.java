@@ -0,0 +1,245 @@
+package com.nainara.lsm9ds1;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*************************************************************************************************
+ *
+ * Loopback check of SampleStreamServer that does not need an IMU. Synthetic batches are pushed
+ * through the server as fast as possible, as if they had been drained by AsyncPollingHelper, by
+ * two threads for two devices at once. The batches are larger than a frame, so each is split over
+ * three frames. A local TCP client and a multicast receiver on the loopback interface decode the frames and
+ * verify them. A second TCP client never reads, so the slow client policy has to drop frames for
+ * it; frames dropped for the reading client show up as sequence gaps.
+ *
+ *************************************************************************************************/
+public class SampleStreamServerTest {
+
+	private static final InetSocketAddress MULTICAST_GROUP_ADDRESS = new InetSocketAddress("239.0.0.19", 0);
+
+	//Readings per batch, split into frames of 32, 32 and 16
+	private static final int BATCH_SIZE = 2 * SampleStreamServer.MAX_SAMPLES_PER_FRAME + 16;
+	private static final int FRAMES_PER_BATCH = 3;
+	private static final int DEVICES = 2;
+
+	public static void main(String[] args) {
+		int batches = 5000;
+		int frames = DEVICES * batches * FRAMES_PER_BATCH;
+
+		SampleStreamServer server = new SampleStreamServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		server.setMaxQueuedFrames(8);
+		DatagramChannel multicastReceiver = openMulticastReceiver(server);
+		FrameCounter tcpCount = new FrameCounter();
+		FrameCounter multicastCount = new FrameCounter();
+		Thread multicastReader = null;
+
+		try {
+			server.start();
+			SocketChannel client = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+			while(server.getClientStats().isEmpty()){
+				Thread.sleep(10);
+			}
+			SocketChannel stalledClient = SocketChannel.open();
+			stalledClient.setOption(StandardSocketOptions.SO_RCVBUF, 4096);
+			stalledClient.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+			while(server.getClientStats().size() < 2){
+				Thread.sleep(10);
+			}
+
+			Thread tcpReader = new Thread(() -> readTcpFrames(client, tcpCount));
+			tcpReader.start();
+			if(multicastReceiver != null){
+				multicastReader = new Thread(() -> readMulticastFrames(multicastReceiver, multicastCount));
+				multicastReader.start();
+			}
+
+			long start = System.nanoTime();
+			PollingListener secondDevice = server.newDeviceStream(1);
+			Thread secondProducer = new Thread(() -> produce(secondDevice, batches));
+			secondProducer.start();
+			produce(server, batches);
+			secondProducer.join();
+			long elapsed = System.nanoTime() - start;
+
+			//Wait until the client has everything the server managed to send, then report
+			long deadline = System.currentTimeMillis() + 10000;
+			SampleStreamServer.ClientStats stats = server.getClientStats().get(0);
+			while((stats.getFramesQueued() > 0 || tcpCount.frames.get() < stats.getFramesSent()) && System.currentTimeMillis() < deadline){
+				Thread.sleep(10);
+				stats = server.getClientStats().get(0);
+			}
+			SampleStreamServer.ClientStats stalledStats = server.getClientStats().get(1);
+			System.out.println(stats);
+			System.out.println(stalledStats);
+
+			//Stopping the server closes the connection, which ends the reader at end of stream
+			server.stop();
+			tcpReader.join(5000);
+			client.close();
+			stalledClient.close();
+
+			System.out.println("Encoded " + frames + " frames in " + elapsed / 1000000 + " ms");
+			System.out.println("TCP frames received: " + tcpCount.frames.get() + ", sent " + stats.getFramesSent()
+					+ ", dropped " + stats.getFramesDropped() + ", samples: " + tcpCount.samples.get()
+					+ ", sequence gaps: " + tcpCount.gaps.get() + ", corrupt: " + tcpCount.corrupt.get());
+			boolean isTcpOk = tcpCount.corrupt.get() == 0 && tcpCount.frames.get() == stats.getFramesSent()
+					&& server.getFramesEncoded() == frames
+					&& tcpCount.frames.get() + stats.getFramesDropped() == frames;
+			System.out.println(isTcpOk ? "TCP stream OK" : "TCP stream MISMATCH");
+			boolean isStalledOk = stalledStats.getFramesDropped() > 0
+					&& stalledStats.getFramesSent() + stalledStats.getFramesQueued() + stalledStats.getFramesDropped() == frames;
+			System.out.println(isStalledOk ? "Stalled client dropped " + stalledStats.getFramesDropped() + " frames as expected" 
+					: "Stalled client MISMATCH");
+
+			if(multicastReceiver != null){
+				multicastReceiver.close();
+				multicastReader.join(5000);
+				System.out.println("Multicast frames received: " + multicastCount.frames.get() + ", sent " + server.getMulticastFramesSent()
+						+ ", dropped by sender " + server.getMulticastFramesDropped() + ", corrupt: " + multicastCount.corrupt.get());
+				boolean isMulticastOk = multicastCount.corrupt.get() == 0 && multicastCount.frames.get() > 0
+						&& server.getMulticastFramesSent() + server.getMulticastFramesDropped() == frames;
+				System.out.println(isMulticastOk ? "Multicast stream OK" : "Multicast stream MISMATCH");
+			}
+		} catch (IOException | InterruptedException e) {
+			e.printStackTrace();
+		} finally {
+			server.stop();
+		}
+	}
+
+	/****************************************************************************************
+	 * Joins the multicast group on the loopback interface and points the server at it
+	 * @return the receiver, or null if this host cannot do multicast on loopback
+	 ****************************************************************************************/
+	private static DatagramChannel openMulticastReceiver(SampleStreamServer server){
+		try {
+			NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+			if(loopback == null || !(InetAddress.getLoopbackAddress() instanceof Inet4Address)){
+				System.out.println("No IPv4 loopback interface, skipping multicast");
+				return null;
+			}
+			DatagramChannel receiver = DatagramChannel.open(StandardProtocolFamily.INET);
+			receiver.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			receiver.setOption(StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+			receiver.bind(new InetSocketAddress(0));
+			receiver.join(MULTICAST_GROUP_ADDRESS.getAddress(), loopback);
+			int port = ((InetSocketAddress) receiver.getLocalAddress()).getPort();
+			server.setMulticastGroup(new InetSocketAddress(MULTICAST_GROUP_ADDRESS.getAddress(), port));
+			server.setMulticastInterface(loopback);
+			return receiver;
+		} catch (IOException | UnsupportedOperationException e) {
+			System.out.println("Multicast on loopback is not available on this host, skipping it: " + e);
+			return null;
+		}
+	}
+
+	//Pushes batches of BATCH_SIZE readings, yaw numbered by position within their frame
+	private static void produce(PollingListener listener, int batches){
+		Polling[] batch = new Polling[BATCH_SIZE];
+		for(int i=0; i < BATCH_SIZE; i++){
+			batch[i] = new Polling();
+			batch[i].setAccZ(1f);
+			batch[i].setGyrYawZ(i % SampleStreamServer.MAX_SAMPLES_PER_FRAME);
+		}
+		for(int b=0; b < batches; b++){
+			for(int i=0; i < BATCH_SIZE; i++){
+				batch[i].setTimestamp(System.nanoTime());
+			}
+			listener.onPollings(batch, BATCH_SIZE);
+		}
+	}
+
+	private static class FrameCounter{
+		final AtomicLong frames = new AtomicLong();
+		final AtomicLong samples = new AtomicLong();
+		final AtomicLong gaps = new AtomicLong();
+		final AtomicLong corrupt = new AtomicLong();
+		final long[] expectedSequence = new long[DEVICES];
+
+		//Checks one frame positioned at its header and counts it
+		void check(ByteBuffer frame, Polling polling){
+			if(frame.remaining() < SampleStreamServer.HEADER_SIZE
+					|| frame.getInt() != SampleStreamServer.FRAME_MAGIC || frame.getShort() != SampleStreamServer.FRAME_VERSION){
+				corrupt.incrementAndGet();
+				return;
+			}
+			int count = frame.getShort();
+			long sequence = frame.getLong();
+			int deviceId = frame.getInt();
+			if(deviceId < 0 || deviceId >= DEVICES || frame.remaining() < count * PollingCodec.RECORD_SIZE){
+				corrupt.incrementAndGet();
+				return;
+			}
+			for(int i=0; i < count; i++){
+				PollingCodec.read(frame, polling);
+				if(polling.getGyrYawZ() != i){
+					corrupt.incrementAndGet();
+					return;
+				}
+			}
+			gaps.addAndGet(sequence - expectedSequence[deviceId]);
+			expectedSequence[deviceId] = sequence + 1;
+			samples.addAndGet(count);
+			frames.incrementAndGet();
+		}
+	}
+
+	private static void readTcpFrames(SocketChannel client, FrameCounter counter){
+		ByteBuffer frame = ByteBuffer.allocate(SampleStreamServer.MAX_FRAME_SIZE);
+		Polling polling = new Polling();
+		try {
+			while(true){
+				frame.clear().limit(SampleStreamServer.HEADER_SIZE);
+				if(!readFully(client, frame)){
+					return;
+				}
+				int count = frame.getShort(6);
+				frame.limit(SampleStreamServer.HEADER_SIZE + count * PollingCodec.RECORD_SIZE);
+				if(!readFully(client, frame)){
+					return;
+				}
+				frame.flip();
+				counter.check(frame, polling);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static void readMulticastFrames(DatagramChannel receiver, FrameCounter counter){
+		ByteBuffer frame = ByteBuffer.allocate(SampleStreamServer.MAX_FRAME_SIZE);
+		Polling polling = new Polling();
+		try {
+			while(true){
+				frame.clear();
+				receiver.receive(frame);
+				frame.flip();
+				counter.check(frame, polling);
+			}
+		} catch (ClosedChannelException e) {
+			//Closed by the main thread once the test is over
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	//Reads until the buffer's limit is reached
+	private static boolean readFully(SocketChannel client, ByteBuffer buffer) throws IOException{
+		while(buffer.hasRemaining()){
+			if(client.read(buffer) < 0){
+				return false;
+			}
+		}
+		return true;
+	}
+}
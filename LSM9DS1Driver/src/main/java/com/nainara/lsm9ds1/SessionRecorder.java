@@ -0,0 +1,99 @@
+package com.nainara.lsm9ds1;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*************************************************************************************************
+ *
+ * Records an IMU session to a file for later processing with SessionReplay. Register it as a
+ * PollingListener on an AsyncPollingHelper; every drained batch is appended with a single write.
+ *
+ * File layout (big-endian): a header of int magic ("LSMR"), short version, short record size,
+ * long wall clock time (ms) and long System.nanoTime() taken at the same instant when recording
+ * started, followed by one PollingCodec record per reading. Reading timestamps are nanoTime
+ * values, so the pair in the header maps them back to wall clock time.
+ *
+ * Sample usage:
+ *
+ * SessionRecorder recorder = new SessionRecorder(Paths.get("session.imu"));
+ * helper.addPollingListener(recorder);
+ * helper.beginPolling();
+ * ...
+ * helper.endPolling();
+ * recorder.close();
+ *
+ *************************************************************************************************/
+public class SessionRecorder implements PollingListener, Closeable {
+
+	public static final int FILE_MAGIC = 0x4C534D52;
+	public static final short FILE_VERSION = 2;
+	public static final int HEADER_SIZE = 4 + 2 + 2 + 8 + 8;
+
+	//Records encoded per write
+	private static final int BATCH_RECORDS = 32;
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BATCH_RECORDS * PollingCodec.RECORD_SIZE);
+	private long recordCount = 0;
+	private boolean isClosed = false;
+
+	/***********************************************************************************************
+	 * @param path file to record to. An existing file is overwritten.
+	 ***********************************************************************************************/
+	public SessionRecorder(Path path) throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		long epochMillis = System.currentTimeMillis();
+		long nanoTime = System.nanoTime();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(FILE_MAGIC)
+			.putShort(FILE_VERSION)
+			.putShort((short) PollingCodec.RECORD_SIZE)
+			.putLong(epochMillis)
+			.putLong(nanoTime);
+		header.flip();
+		writeFully(header);
+	}
+
+	@Override
+	public synchronized void onPollings(Polling[] pollings, int count){
+		if(isClosed){
+			return;
+		}
+		try {
+			for(int offset=0; offset < count; offset += BATCH_RECORDS){
+				int end = Math.min(count, offset + BATCH_RECORDS);
+				buffer.clear();
+				for(int i=offset; i < end; i++){
+					PollingCodec.write(buffer, pollings[i]);
+				}
+				buffer.flip();
+				writeFully(buffer);
+				recordCount += end - offset;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void writeFully(ByteBuffer source) throws IOException{
+		while(source.hasRemaining()){
+			channel.write(source);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if(!isClosed){
+			isClosed = true;
+			channel.close();
+		}
+	}
+
+	public synchronized long getRecordCount() {
+		return recordCount;
+	}
+}
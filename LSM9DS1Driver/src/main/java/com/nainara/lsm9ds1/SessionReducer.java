@@ -0,0 +1,41 @@
+package com.nainara.lsm9ds1;
+
+/*************************************************************************************************
+ *
+ * Processing applied to a recorded session by SessionReplay.replayParallel(). The recording is
+ * split into chunks of consecutive readings; each chunk is accumulated into its own partial
+ * result on a fork-join worker, and adjacent partial results are then combined in recording
+ * order.
+ *
+ * @param <R> type of the partial and final result
+ *
+ *************************************************************************************************/
+public interface SessionReducer<R> {
+
+	/****************************************************************************************
+	 * @return an empty partial result for a new chunk
+	 ****************************************************************************************/
+	R newPartial();
+
+	/****************************************************************************************
+	 * Readings just before the start of a chunk, to let stateful processing such as filters
+	 * settle. Only called when SessionReplay has a chunk overlap, and never for the first chunk.
+	 * They must not be counted in the result; they are accumulated by the preceding chunk.
+	 ****************************************************************************************/
+	default void warmUp(R partial, Polling[] pollings, int count){
+	}
+
+	/****************************************************************************************
+	 * @param pollings next readings of the chunk in recording order. The array and its Polling
+	 * instances are reused between calls.
+	 * @param count number of valid entries at the start of the pollings array
+	 ****************************************************************************************/
+	void accumulate(R partial, Polling[] pollings, int count);
+
+	/****************************************************************************************
+	 * Stitches two adjacent partial results together
+	 * @param earlier result of the readings that come first in the recording
+	 * @param later result of the readings immediately following
+	 ****************************************************************************************/
+	R combine(R earlier, R later);
+}
@@ -0,0 +1,314 @@
+package com.nainara.lsm9ds1;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+/*************************************************************************************************
+ *
+ * SessionReplay plays back a session recorded by SessionRecorder so that offline processing can
+ * consume it like live data: readings are delivered to PollingListeners in batches, as
+ * AsyncPollingHelper delivers FIFO drains. The recording does not keep drain boundaries, so every
+ * batch holds batchSize readings (fewer at the end) whatever the drains of the original session
+ * were. The file is memory mapped and decoded into a reusable batch, so replay allocates nothing
+ * per reading.
+ *
+ * Replay modes:
+ * - REAL_TIME: each batch is delivered when its last reading is due according to the recorded
+ *   timestamps, so readings arrive at the recorded rate. Delivery follows the batch size rather
+ *   than the original drain interval, e.g. at 14.9hz a batch of 32 comes about every 2 seconds.
+ * - AS_FAST_AS_POSSIBLE: batches are delivered back to back.
+ *
+ * For long recordings, replayParallel() splits the session into chunks that are processed on a
+ * fork-join pool by a SessionReducer and stitched back together in recording order. Listeners are
+ * not involved in parallel mode.
+ *
+ * Sample usage:
+ *
+ * SessionReplay replay = new SessionReplay(Paths.get("session.imu"));
+ * replay.addPollingListener(myFusionFilter);
+ * replay.replay(SessionReplay.Mode.AS_FAST_AS_POSSIBLE);
+ * replay.close();
+ *
+ *************************************************************************************************/
+public class SessionReplay implements Closeable {
+
+	public enum Mode{
+		REAL_TIME,
+		AS_FAST_AS_POSSIBLE
+	}
+
+	//Records mapped at a time during sequential replay (32MB)
+	private static final int WINDOW_RECORDS = 1 << 20;
+
+	private final FileChannel channel;
+	private final long recordCount;
+	private final long startEpochMillis;
+	private final long startNanoTime;
+
+	//Listeners notified with each replayed batch
+	private List<PollingListener> listeners = new CopyOnWriteArrayList<>();
+
+	//Readings per batch. Defaults to the depth of the device FIFO
+	private int batchSize = 32;
+
+	//Readings per chunk in parallel mode
+	private int chunkSize = 1 << 16;
+
+	//Readings preceding each chunk that are fed to SessionReducer.warmUp() in parallel mode
+	private int chunkOverlap = 0;
+
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	//Flag to signal when a sequential replay should finish up
+	private volatile boolean isContinueReplay = false;
+
+	/***********************************************************************************************
+	 * @param path file written by SessionRecorder
+	 ***********************************************************************************************/
+	public SessionReplay(Path path) throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.READ);
+		ByteBuffer header = ByteBuffer.allocate(SessionRecorder.HEADER_SIZE);
+		while(header.hasRemaining()){
+			if(channel.read(header) < 0){
+				channel.close();
+				throw new IOException("Truncated session header in " + path);
+			}
+		}
+		header.flip();
+		int magic = header.getInt();
+		short version = header.getShort();
+		short recordSize = header.getShort();
+		if(magic != SessionRecorder.FILE_MAGIC || version != SessionRecorder.FILE_VERSION || recordSize != PollingCodec.RECORD_SIZE){
+			channel.close();
+			throw new IOException("Not a supported LSM9DS1 session recording: " + path);
+		}
+		startEpochMillis = header.getLong();
+		startNanoTime = header.getLong();
+		//A trailing partial record from an interrupted recording is ignored
+		recordCount = (channel.size() - SessionRecorder.HEADER_SIZE) / PollingCodec.RECORD_SIZE;
+	}
+
+	/****************************************************************************************
+	 * Replays the whole session to the listeners on the calling thread
+	 * @return number of readings replayed, which is less than getRecordCount() if the replay
+	 * was stopped
+	 ****************************************************************************************/
+	public long replay(Mode mode) throws IOException{
+		isContinueReplay = true;
+		Polling[] batch = newBatch(batchSize);
+		long replayed = 0;
+		long firstTimestamp = 0;
+		long startNs = System.nanoTime();
+
+		for(long window=0; window < recordCount && isContinueReplay; window += WINDOW_RECORDS){
+			int remaining = (int) Math.min(WINDOW_RECORDS, recordCount - window);
+			ByteBuffer records = map(window, remaining);
+			while(remaining > 0 && isContinueReplay){
+				int count = Math.min(batchSize, remaining);
+				for(int i=0; i < count; i++){
+					PollingCodec.read(records, batch[i]);
+				}
+				remaining -= count;
+
+				if(mode == Mode.REAL_TIME){
+					if(replayed == 0){
+						firstTimestamp = batch[0].getTimestamp();
+					}
+					long wait = startNs + (batch[count - 1].getTimestamp() - firstTimestamp) - System.nanoTime();
+					if(wait > 0){
+						try {
+							TimeUnit.NANOSECONDS.sleep(wait);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							isContinueReplay = false;
+							break;
+						}
+					}
+				}
+				for(PollingListener listener : listeners){
+					listener.onPollings(batch, count);
+				}
+				replayed += count;
+			}
+		}
+		isContinueReplay = false;
+		return replayed;
+	}
+
+	/****************************************************************************************
+	 * Processes the whole session in parallel chunks on the fork-join pool
+	 * @return the partial results of all chunks combined in recording order
+	 ****************************************************************************************/
+	public <R> R replayParallel(SessionReducer<R> reducer) throws IOException{
+		if(recordCount == 0){
+			return reducer.newPartial();
+		}
+		try{
+			return pool.invoke(new ChunkTask<>(reducer, 0, recordCount));
+		}catch(UncheckedIOException e){
+			throw e.getCause();
+		}
+	}
+
+	/****************************************************************************************
+	 * Signals a sequential replay in progress to stop after the current batch
+	 ****************************************************************************************/
+	public void stop(){
+		isContinueReplay = false;
+	}
+
+	private class ChunkTask<R> extends RecursiveTask<R>{
+		private static final long serialVersionUID = 1L;
+
+		private final SessionReducer<R> reducer;
+		private final long from;
+		private final long to;
+
+		ChunkTask(SessionReducer<R> reducer, long from, long to) {
+			this.reducer = reducer;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected R compute() {
+			if(to - from <= chunkSize){
+				return processChunk();
+			}
+			long middle = from + (to - from) / 2;
+			ChunkTask<R> earlier = new ChunkTask<>(reducer, from, middle);
+			ChunkTask<R> later = new ChunkTask<>(reducer, middle, to);
+			earlier.fork();
+			R laterResult = later.compute();
+			return reducer.combine(earlier.join(), laterResult);
+		}
+
+		private R processChunk(){
+			R partial = reducer.newPartial();
+			long warmFrom = Math.max(0, from - chunkOverlap);
+			Polling[] batch = newBatch(batchSize);
+			//Mapped in windows like replay(), so neither chunkSize nor chunkOverlap bounds the mapping
+			for(long window=warmFrom; window < to; window += WINDOW_RECORDS){
+				int remaining = (int) Math.min(WINDOW_RECORDS, to - window);
+				ByteBuffer records;
+				try {
+					records = map(window, remaining);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				long position = window;
+				while(remaining > 0){
+					//A batch never straddles the start of the chunk, so warm-up readings are never accumulated
+					boolean isWarmUp = position < from;
+					int count = (int) Math.min(Math.min(batchSize, remaining), (isWarmUp ? from : to) - position);
+					for(int i=0; i < count; i++){
+						PollingCodec.read(records, batch[i]);
+					}
+					if(isWarmUp){
+						reducer.warmUp(partial, batch, count);
+					}else{
+						reducer.accumulate(partial, batch, count);
+					}
+					position += count;
+					remaining -= count;
+				}
+			}
+			return partial;
+		}
+	}
+
+	private ByteBuffer map(long firstRecord, int count) throws IOException{
+		return channel.map(FileChannel.MapMode.READ_ONLY,
+				SessionRecorder.HEADER_SIZE + firstRecord * PollingCodec.RECORD_SIZE,
+				(long) count * PollingCodec.RECORD_SIZE);
+	}
+
+	private static Polling[] newBatch(int size){
+		Polling[] batch = new Polling[size];
+		for(int i=0; i < size; i++){
+			batch[i] = new Polling();
+		}
+		return batch;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/****************************************************************************************
+	 * @param listener notified with every replayed batch
+	 ****************************************************************************************/
+	public void addPollingListener(PollingListener listener){
+		listeners.add(listener);
+	}
+
+	public void removePollingListener(PollingListener listener){
+		listeners.remove(listener);
+	}
+
+	public long getRecordCount() {
+		return recordCount;
+	}
+
+	public long getStartEpochMillis() {
+		return startEpochMillis;
+	}
+
+	/****************************************************************************************
+	 * @return System.nanoTime() of the recording host at the instant of getStartEpochMillis()
+	 ****************************************************************************************/
+	public long getStartNanoTime() {
+		return startNanoTime;
+	}
+
+	/****************************************************************************************
+	 * @param timestampNs timestamp of a recorded reading
+	 * @return wall clock time (ms) of the reading on the recording host
+	 ****************************************************************************************/
+	public long toEpochMillis(long timestampNs) {
+		return startEpochMillis + Math.floorDiv(timestampNs - startNanoTime, 1000000L);
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = Math.max(1, chunkSize);
+	}
+
+	public int getChunkOverlap() {
+		return chunkOverlap;
+	}
+
+	public void setChunkOverlap(int chunkOverlap) {
+		this.chunkOverlap = Math.max(0, chunkOverlap);
+	}
+
+	public ForkJoinPool getPool() {
+		return pool;
+	}
+
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+}
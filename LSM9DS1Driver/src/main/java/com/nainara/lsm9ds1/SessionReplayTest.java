@@ -0,0 +1,223 @@
+package com.nainara.lsm9ds1;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/*************************************************************************************************
+ *
+ * Records a synthetic one hour session at 476hz and processes it with SessionReplay in each of
+ * its modes, checking that sequential and parallel processing agree. Parallel processing runs
+ * with a chunk overlap, and besides a commutative reducer uses an order-sensitive one (first and
+ * last reading, and the sum of the changes between consecutive readings, which needs the reading
+ * before each chunk from warmUp). Needs no IMU.
+ *
+ *************************************************************************************************/
+public class SessionReplayTest {
+
+	private static final int OVERLAP = 16;
+
+	public static void main(String[] args) {
+		Path longSession = null;
+		Path shortSession = null;
+		try {
+			longSession = Files.createTempFile("lsm9ds1-long", ".imu");
+			shortSession = Files.createTempFile("lsm9ds1-short", ".imu");
+			record(longSession, 3600);
+			record(shortSession, 2);
+
+			try(SessionReplay replay = new SessionReplay(shortSession)){
+				replay.addPollingListener(new Statistics());
+				long start = System.nanoTime();
+				replay.replay(SessionReplay.Mode.REAL_TIME);
+				System.out.println("Real time replay of a 2 second session took " + (System.nanoTime() - start) / 1000000 + " ms");
+			}
+
+			try(SessionReplay replay = new SessionReplay(longSession)){
+				System.out.println("Long session: " + replay.getRecordCount() + " readings");
+
+				Statistics sequential = new Statistics();
+				Trace sequentialTrace = new Trace();
+				replay.addPollingListener(sequential);
+				replay.addPollingListener(sequentialTrace);
+				long start = System.nanoTime();
+				replay.replay(SessionReplay.Mode.AS_FAST_AS_POSSIBLE);
+				System.out.println("As fast as possible: " + (System.nanoTime() - start) / 1000000 + " ms, " + sequential);
+
+				long startOffsetMs = replay.toEpochMillis(sequential.first) - replay.getStartEpochMillis();
+				System.out.println(Math.abs(startOffsetMs) < 1000 ? "First reading maps to the recording start time"
+						: "MISMATCH, first reading maps to " + startOffsetMs + " ms after the recording start time");
+
+				replay.setChunkOverlap(OVERLAP);
+				start = System.nanoTime();
+				Statistics parallel = replay.replayParallel(new StatisticsReducer());
+				System.out.println("Parallel on " + replay.getPool().getParallelism() + " workers: " + (System.nanoTime() - start) / 1000000 + " ms, " + parallel);
+
+				System.out.println(sequential.count == parallel.count && sequential.first == parallel.first && sequential.last == parallel.last
+						? "Sequential and parallel results agree" : "MISMATCH between sequential and parallel results");
+
+				Trace parallelTrace = replay.replayParallel(new TraceReducer());
+				long chunks = (replay.getRecordCount() + replay.getChunkSize() - 1) / replay.getChunkSize();
+				System.out.println("Sequential " + sequentialTrace + ", parallel " + parallelTrace);
+				System.out.println(sequentialTrace.agrees(parallelTrace) && parallelTrace.warmUpReadings >= (chunks - 1) * OVERLAP
+						? "Order-sensitive results agree" : "MISMATCH between order-sensitive results");
+
+				//One chunk for the whole session, larger than a single mapping window
+				replay.setChunkSize(Integer.MAX_VALUE);
+				Trace singleChunk = replay.replayParallel(new TraceReducer());
+				System.out.println(sequentialTrace.agrees(singleChunk)
+						? "Single chunk result agrees" : "MISMATCH in single chunk result " + singleChunk);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				if(longSession != null) Files.deleteIfExists(longSession);
+				if(shortSession != null) Files.deleteIfExists(shortSession);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	//Writes a session of drains of 32 readings, as AsyncPollingHelper would deliver them
+	private static void record(Path path, int seconds) throws IOException{
+		Driver.DataRate rate = Driver.DataRate.FREQ_476_HZ;
+		long periodNs = Math.round(1000000000d / rate.getHz());
+		int total = Math.round(rate.getHz() * seconds);
+		Polling[] batch = new Polling[32];
+		for(int i=0; i < batch.length; i++){
+			batch[i] = new Polling();
+			batch[i].setAccZ(1f);
+		}
+		try(SessionRecorder recorder = new SessionRecorder(path)){
+			long startNs = System.nanoTime();
+			for(int index=0; index < total; ){
+				int count = Math.min(batch.length, total - index);
+				for(int i=0; i < count; i++, index++){
+					batch[i].setTimestamp(startNs + index * periodNs);
+					batch[i].setGyrYawZ((float) Math.sin(index / 100d));
+				}
+				recorder.onPollings(batch, count);
+			}
+		}
+	}
+
+	private static class Statistics implements PollingListener{
+		long count = 0;
+		long first = Long.MAX_VALUE;
+		long last = Long.MIN_VALUE;
+		double sumYaw = 0;
+
+		@Override
+		public void onPollings(Polling[] pollings, int count){
+			for(int i=0; i < count; i++){
+				add(pollings[i]);
+			}
+		}
+
+		void add(Polling polling){
+			count++;
+			first = Math.min(first, polling.getTimestamp());
+			last = Math.max(last, polling.getTimestamp());
+			sumYaw += polling.getGyrYawZ();
+		}
+
+		@Override
+		public String toString() {
+			return "readings [" + count + "], mean yaw [" + (sumYaw / count) + "]";
+		}
+	}
+
+	private static class StatisticsReducer implements SessionReducer<Statistics>{
+		@Override
+		public Statistics newPartial() {
+			return new Statistics();
+		}
+
+		@Override
+		public void accumulate(Statistics partial, Polling[] pollings, int count) {
+			partial.onPollings(pollings, count);
+		}
+
+		@Override
+		public Statistics combine(Statistics earlier, Statistics later) {
+			earlier.count += later.count;
+			earlier.first = Math.min(earlier.first, later.first);
+			earlier.last = Math.max(earlier.last, later.last);
+			earlier.sumYaw += later.sumYaw;
+			return earlier;
+		}
+	}
+
+	//Order-sensitive summary of a session
+	private static class Trace implements PollingListener{
+		long count = 0;
+		float firstYaw = Float.NaN;
+		float lastYaw = Float.NaN;
+		//Sum of the absolute changes between consecutive readings
+		double variation = 0;
+		//Reading before the current one, from the previous batch or from warmUp
+		float previousYaw = Float.NaN;
+		long warmUpReadings = 0;
+
+		@Override
+		public void onPollings(Polling[] pollings, int count){
+			for(int i=0; i < count; i++){
+				float yaw = pollings[i].getGyrYawZ();
+				if(this.count == 0){
+					firstYaw = yaw;
+				}
+				if(!Float.isNaN(previousYaw)){
+					variation += Math.abs(yaw - previousYaw);
+				}
+				previousYaw = yaw;
+				lastYaw = yaw;
+				this.count++;
+			}
+		}
+
+		boolean agrees(Trace other){
+			return count == other.count && firstYaw == other.firstYaw && lastYaw == other.lastYaw
+					&& Math.abs(variation - other.variation) < 1e-6 * Math.max(1, variation);
+		}
+
+		@Override
+		public String toString() {
+			return "first yaw [" + firstYaw + "], last yaw [" + lastYaw + "], variation [" + variation + "]";
+		}
+	}
+
+	private static class TraceReducer implements SessionReducer<Trace>{
+		@Override
+		public Trace newPartial() {
+			return new Trace();
+		}
+
+		@Override
+		public void warmUp(Trace partial, Polling[] pollings, int count) {
+			partial.previousYaw = pollings[count - 1].getGyrYawZ();
+			partial.warmUpReadings += count;
+		}
+
+		@Override
+		public void accumulate(Trace partial, Polling[] pollings, int count) {
+			partial.onPollings(pollings, count);
+		}
+
+		@Override
+		public Trace combine(Trace earlier, Trace later) {
+			if(earlier.count == 0){
+				return later;
+			}
+			if(later.count > 0){
+				earlier.lastYaw = later.lastYaw;
+				earlier.previousYaw = later.previousYaw;
+			}
+			earlier.count += later.count;
+			earlier.variation += later.variation;
+			earlier.warmUpReadings += later.warmUpReadings;
+			return earlier;
+		}
+	}
+}
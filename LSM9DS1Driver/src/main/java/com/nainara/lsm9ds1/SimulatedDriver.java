@@ -0,0 +1,168 @@
+package com.nainara.lsm9ds1;
+
+import java.util.function.LongSupplier;
+
+/***************************************************************************************
+ *
+ * Stand-in for Driver that needs no I2C bus. It models the device FIFO filling up at the
+ * configured DataRate, as measured by the device's own (optionally drifting) crystal, and
+ * produces a slow sinusoidal rotation about each gyroscope axis with 1g on the Z axis.
+ *
+ * Useful for benchmarking polling, streaming and resampling without hardware. Time is read from
+ * System.nanoTime() unless another host clock is set, so benchmarks can simulate hours of
+ * polling in seconds.
+ *
+ ***************************************************************************************/
+public class SimulatedDriver extends Driver {
+
+	//FIFO depth of the LSM9DS1
+	private static final int FIFO_SLOTS = 32;
+
+	//Fractional clock error of the simulated crystal, e.g. 50e-6 runs 50 ppm fast
+	private double clockDrift = 0;
+
+	//Host clock in nanoseconds
+	private LongSupplier clock = System::nanoTime;
+
+	private volatile boolean isInitialized = false;
+
+	//Device-side state
+	private long lastUpdateNs;
+	private double unreadSamples;
+	private long sampleIndex;
+
+	//Values of the sample most recently read
+	private float gyrPitchX;
+	private float gyrRollY;
+	private float gyrYawZ;
+
+	public SimulatedDriver() {
+		setUseFifoBuffer(true);
+	}
+
+	/****************************************************************************************
+	 * @param clockDrift fractional error of the device crystal, e.g. -20e-6 runs 20 ppm slow
+	 ****************************************************************************************/
+	public SimulatedDriver(double clockDrift) {
+		this();
+		this.clockDrift = clockDrift;
+	}
+
+	@Override
+	public boolean initialize(){
+		if(!isInitialized){
+			lastUpdateNs = clock.getAsLong();
+			isInitialized = true;
+		}
+		return true;
+	}
+
+	@Override
+	public int pollAvailableReads(){
+		if(!isInitialized){
+			System.err.println("Warning. Attempted to poll the IMU before it was initialized.");
+			return -1;
+		}
+		long now = clock.getAsLong();
+		unreadSamples += (now - lastUpdateNs) / 1e9 * getDeviceHz();
+		lastUpdateNs = now;
+		//A full FIFO overwrites its oldest readings
+		long overwritten = (long) Math.floor(unreadSamples) - FIFO_SLOTS;
+		if(overwritten > 0){
+			sampleIndex += overwritten;
+			unreadSamples -= overwritten;
+		}
+		return (int) Math.floor(unreadSamples);
+	}
+
+	@Override
+	public void pollIMU(){
+		if(unreadSamples < 1){
+			return;
+		}
+		unreadSamples--;
+		sampleIndex++;
+		double deviceSeconds = sampleIndex / getDeviceHz();
+		gyrPitchX = (float) (20 * Math.sin(2 * Math.PI * 0.5 * deviceSeconds));
+		gyrRollY = (float) (20 * Math.sin(2 * Math.PI * 0.7 * deviceSeconds));
+		gyrYawZ = (float) (20 * Math.sin(2 * Math.PI * 1.1 * deviceSeconds));
+	}
+
+	@Override
+	public void pollMagnetometer(){
+	}
+
+	@Override
+	public void pollThermometer(){
+	}
+
+	/****************************************************************************************
+	 * Anything still unread is lost, like a reset of the real FIFO. The device clock keeps
+	 * running, so the lost samples still advance the signal.
+	 ****************************************************************************************/
+	@Override
+	public void resetFifoBuffer(){
+		long lost = (long) Math.floor(unreadSamples);
+		sampleIndex += lost;
+		unreadSamples -= lost;
+	}
+
+	//Actual rate of the simulated device, including drift
+	private double getDeviceHz(){
+		return getDatarate().getHz() * (1 + clockDrift);
+	}
+
+	@Override
+	public float getGyrPitchX() {
+		return gyrPitchX;
+	}
+
+	@Override
+	public float getGyrRollY() {
+		return gyrRollY;
+	}
+
+	@Override
+	public float getGyrYawZ() {
+		return gyrYawZ;
+	}
+
+	@Override
+	public float getAccX() {
+		return 0f;
+	}
+
+	@Override
+	public float getAccY() {
+		return 0f;
+	}
+
+	@Override
+	public float getAccZ() {
+		return 1f;
+	}
+
+	public double getClockDrift() {
+		return clockDrift;
+	}
+
+	public void setClockDrift(double clockDrift) {
+		this.clockDrift = clockDrift;
+	}
+
+	/****************************************************************************************
+	 * @param clock host clock in nanoseconds, read on initialize() and pollAvailableReads().
+	 * Set it before initializing the driver.
+	 ****************************************************************************************/
+	public void setClock(LongSupplier clock) {
+		this.clock = clock;
+	}
+
+	/****************************************************************************************
+	 * @return index of the sample most recently read. Sample n was taken n / (hz * (1 + drift))
+	 * seconds of host time after initialize().
+	 ****************************************************************************************/
+	public long getSampleIndex() {
+		return sampleIndex;
+	}
+}